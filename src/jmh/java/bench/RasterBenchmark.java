@@ -0,0 +1,84 @@
+package bench;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rastering: getMapRaster with every tile already decoded in the tile cache (warm) and with
+ * the tile cache emptied before each call (cold), and JPEG encoding of the result. The
+ * queries are the raster requests of the test cases, taken in turn.
+ * <p>
+ *     Cold only empties the cache of decoded tiles; the tile files will usually still be in
+ *     the OS page cache, so it measures decoding rather than disk reads.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Dbearmaps.tileaccess="})
+@State(Scope.Benchmark)
+public class RasterBenchmark {
+    private List<Server.Query> queries;
+    private int next;
+    private BufferedImage raster;
+
+    @Setup(Level.Trial)
+    public void initialize() throws Throwable {
+        Object unused = (Object) Server.INITIALIZE.invokeExact();
+        queries = Server.queries();
+        raster = (BufferedImage) (Object) Server.GET_MAP_RASTER.invokeExact(
+                (Object) queries.get(0).rasterParams, (Object) new HashMap<String, Object>());
+    }
+
+    /** Returns the raster params of the next query. */
+    private Map<String, Double> nextQuery() {
+        Map<String, Double> params = queries.get(next).rasterParams;
+        next = (next + 1) % queries.size();
+        return params;
+    }
+
+    /** Empties the tile cache before each call of the cold benchmark. */
+    @State(Scope.Thread)
+    public static class ColdCache {
+        @Setup(Level.Invocation)
+        public void clear() throws Throwable {
+            Object unused = (Object) Server.CLEAR_TILE_CACHE.invokeExact(Server.tileCache());
+        }
+    }
+
+    @Benchmark
+    public Object getMapRasterWarm() throws Throwable {
+        return (Object) Server.GET_MAP_RASTER.invokeExact((Object) nextQuery(),
+                (Object) new HashMap<String, Object>());
+    }
+
+    @Benchmark
+    public Object getMapRasterCold(ColdCache cold) throws Throwable {
+        return (Object) Server.GET_MAP_RASTER.invokeExact((Object) nextQuery(),
+                (Object) new HashMap<String, Object>());
+    }
+
+    @Benchmark
+    public int writeJpgToStream() throws Throwable {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Object unused = (Object) Server.WRITE_JPG.invokeExact((Object) raster, (Object) os);
+        return os.size();
+    }
+}
@@ -0,0 +1,98 @@
+package bench;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Routing: snapping a point to its closest node, the A* search between two snapped nodes, and
+ * findAndDrawRoute end to end, over the route requests of the test cases, taken in turn.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Dbearmaps.tileaccess="})
+@State(Scope.Benchmark)
+public class RoutingBenchmark {
+    private Object g;
+    private List<Server.Query> queries;
+    /** Closest nodes to the start and end of each query. */
+    private Object[] starts;
+    private Object[] ends;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void initialize() throws Throwable {
+        Object unused = (Object) Server.INITIALIZE.invokeExact();
+        g = Server.graph();
+        queries = Server.queries();
+        starts = new Object[queries.size()];
+        ends = new Object[queries.size()];
+        for (int i = 0; i < queries.size(); i++) {
+            Map<String, Double> route = queries.get(i).routeParams;
+            starts[i] = (Object) Server.FIND_CLOSEST.invokeExact(g,
+                    (Object) route.get("start_lon"), (Object) route.get("start_lat"));
+            ends[i] = (Object) Server.FIND_CLOSEST.invokeExact(g,
+                    (Object) route.get("end_lon"), (Object) route.get("end_lat"));
+        }
+    }
+
+    /** Returns the index of the next query. */
+    private int nextQuery() {
+        int current = next;
+        next = (next + 1) % queries.size();
+        return current;
+    }
+
+    /** A fresh raster of the next query, to draw its route on, made outside the measurement. */
+    @State(Scope.Thread)
+    public static class Raster {
+        int query;
+        Map<String, Object> rasteredImageParams;
+        BufferedImage image;
+
+        @Setup(Level.Invocation)
+        public void render(RoutingBenchmark b) throws Throwable {
+            query = b.nextQuery();
+            rasteredImageParams = new HashMap<>();
+            image = (BufferedImage) (Object) Server.GET_MAP_RASTER.invokeExact(
+                    (Object) b.queries.get(query).rasterParams, (Object) rasteredImageParams);
+        }
+    }
+
+    @Benchmark
+    public Object findClosest() throws Throwable {
+        Map<String, Double> route = queries.get(nextQuery()).routeParams;
+        return (Object) Server.FIND_CLOSEST.invokeExact(g,
+                (Object) route.get("start_lon"), (Object) route.get("start_lat"));
+    }
+
+    @Benchmark
+    public Object star() throws Throwable {
+        int query = nextQuery();
+        return (Object) Server.ROUTE.invokeExact(g, starts[query], ends[query],
+                Server.DEFAULT_PROFILE);
+    }
+
+    @Benchmark
+    public Object findAndDrawRoute(Raster raster) throws Throwable {
+        return (Object) Server.FIND_AND_DRAW_ROUTE.invokeExact(
+                (Object) queries.get(raster.query).routeParams,
+                (Object) raster.rasteredImageParams, (Object) raster.image);
+    }
+}
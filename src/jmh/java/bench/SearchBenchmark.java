@@ -0,0 +1,44 @@
+package bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Autocompletion of the search prefixes of the test cases, taken in turn. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Dbearmaps.tileaccess="})
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+    private String[] prefixes;
+    private int next;
+
+    @Setup
+    public void initialize() throws Throwable {
+        Object unused = (Object) Server.INITIALIZE.invokeExact();
+        List<Server.Query> queries = Server.queries();
+        prefixes = new String[queries.size()];
+        for (int i = 0; i < prefixes.length; i++) {
+            prefixes[i] = queries.get(i).prefix;
+        }
+    }
+
+    @Benchmark
+    public Object getLocationsByPrefix() throws Throwable {
+        String prefix = prefixes[next];
+        next = (next + 1) % prefixes.length;
+        return (Object) Server.GET_LOCATIONS_BY_PREFIX.invokeExact((Object) prefix);
+    }
+}
@@ -0,0 +1,145 @@
+package bench;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Entry points into the server for the benchmarks. The server lives in the default package,
+ * which JMH cannot generate code for and a named package cannot import, so its methods are
+ * reached through method handles, resolved once and invoked exactly. Every handle takes and
+ * returns Object.
+ */
+final class Server {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    static final MethodHandle INITIALIZE = method("MapServer", "initialize");
+    /** (Map rasterParams, Map rasteredImageParams) -> BufferedImage */
+    static final MethodHandle GET_MAP_RASTER = method("MapServer", "getMapRaster",
+            Map.class, Map.class);
+    /** (BufferedImage im, OutputStream os) -> void */
+    static final MethodHandle WRITE_JPG = method("MapServer", "writeJpgToStream",
+            java.awt.image.BufferedImage.class, OutputStream.class);
+    /** (Map routeParams, Map rasteredImageParams, BufferedImage im) -> List */
+    static final MethodHandle FIND_AND_DRAW_ROUTE = method("MapServer", "findAndDrawRoute",
+            Map.class, Map.class, java.awt.image.BufferedImage.class);
+    /** (String prefix) -> List */
+    static final MethodHandle GET_LOCATIONS_BY_PREFIX = method("MapServer",
+            "getLocationsByPrefix", String.class);
+    /** (GraphDB g, Double lon, Double lat) -> GraphNode */
+    static final MethodHandle FIND_CLOSEST = method("GraphDB", "findClosest",
+            Double.class, Double.class);
+    /** (GraphDB g, GraphNode origin, GraphNode destination, RouteProfile profile) -> List */
+    static final MethodHandle ROUTE = method("GraphDB", "route",
+            type("GraphNode"), type("GraphNode"), type("RouteProfile"));
+    /** (String dbPath) -> GraphDB */
+    static final MethodHandle NEW_GRAPH_DB = constructor("GraphDB", String.class);
+    /** (TileCache cache) -> void */
+    static final MethodHandle CLEAR_TILE_CACHE = method("TileCache", "clear");
+
+    static final String OSM_DB_PATH = (String) staticField("MapServer", "OSM_DB_PATH");
+    static final Object DEFAULT_PROFILE = staticField("RouteProfile", "DEFAULT");
+
+    private Server() {
+    }
+
+    /** The graph of the initialized server. */
+    static Object graph() {
+        return staticField("MapServer", "g");
+    }
+
+    /** The tile cache of the server. */
+    static Object tileCache() {
+        return staticField("MapServer", "tileCache");
+    }
+
+    /** One benchmark input, read from a test case. */
+    static final class Query {
+        final Map<String, Double> rasterParams;
+        final Map<String, Double> routeParams;
+        final String prefix;
+
+        Query(Map<String, Double> rasterParams, Map<String, Double> routeParams, String prefix) {
+            this.rasterParams = rasterParams;
+            this.routeParams = routeParams;
+            this.prefix = prefix;
+        }
+    }
+
+    /** Reads the queries of the test cases serialized in test_data. */
+    @SuppressWarnings("unchecked")
+    static List<Query> queries() throws IOException, ClassNotFoundException {
+        List<Object> params;
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream("test_data"))) {
+            params = (List<Object>) in.readObject();
+        }
+        List<Query> queries = new ArrayList<>(params.size());
+        for (Object p : params) {
+            queries.add(new Query((Map<String, Double>) field(p, "rasterParams"),
+                    (Map<String, Double>) field(p, "routeParams"),
+                    (String) field(p, "prefixSearchParam")));
+        }
+        return queries;
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle method(String owner, String name, Class<?>... parameters) {
+        try {
+            return generic(LOOKUP.unreflect(
+                    accessible(type(owner).getDeclaredMethod(name, parameters))));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle constructor(String owner, Class<?>... parameters) {
+        try {
+            return generic(LOOKUP.unreflectConstructor(
+                    accessible(type(owner).getDeclaredConstructor(parameters))));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Adapts h to take and return Object, so that it can be invoked exactly from here. */
+    private static MethodHandle generic(MethodHandle h) {
+        return h.asType(h.type().generic());
+    }
+
+    private static <T extends AccessibleObject> T accessible(T member) {
+        member.setAccessible(true);
+        return member;
+    }
+
+    private static Object staticField(String owner, String name) {
+        try {
+            return accessible(type(owner).getDeclaredField(name)).get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object field(Object o, String name) {
+        try {
+            Field f = o.getClass().getDeclaredField(name);
+            return accessible(f).get(o);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control for one endpoint: at most maxConcurrent requests run at once, at most
+ * maxQueued more wait for a slot, and none waits longer than the latency target. A request
+ * that would exceed any of these is shed, to be answered 503, rather than queued without
+ * limit while latency climbs for everyone.
+ * <p>
+ *     The wait of recent requests is tracked as a moving average, which tells callers how
+ *     long to ask a shed client to back off, and whether the endpoint is congested enough to
+ *     serve cheaper answers.
+ * </p>
+ */
+public class Admission {
+    /** Weight of the latest request in the moving average of waits. */
+    private static final double SMOOTHING = 0.1;
+
+    private final String name;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long targetWaitMs;
+    private final Semaphore running;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder shed = new LongAdder();
+    /** Moving average of the queue wait, in milliseconds. */
+    private double averageWaitMs;
+
+    /**
+     * @param name Endpoint name.
+     * @param maxConcurrent Maximum number of requests running at once.
+     * @param maxQueued Maximum number of requests waiting for a slot.
+     * @param targetWaitMs Longest a request may wait for a slot, in milliseconds.
+     */
+    public Admission(String name, int maxConcurrent, int maxQueued, long targetWaitMs) {
+        this.name = name;
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.targetWaitMs = targetWaitMs;
+        this.running = new Semaphore(maxConcurrent, true);
+        Metrics.register(this);
+    }
+
+    /**
+     * Waits for a slot. Returns false, without a slot, if the queue is full or the wait
+     * reaches the latency target. Every successful call must be matched by a call to exit.
+     */
+    public boolean enter() throws InterruptedException {
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            recordWait(targetWaitMs);
+            shed.increment();
+            return false;
+        }
+        long start = System.nanoTime();
+        boolean admitted;
+        try {
+            admitted = running.tryAcquire(targetWaitMs, TimeUnit.MILLISECONDS);
+        } finally {
+            queued.decrementAndGet();
+        }
+        recordWait(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        if (!admitted) {
+            shed.increment();
+        }
+        return admitted;
+    }
+
+    /** Gives back the slot taken by enter. */
+    public void exit() {
+        running.release();
+    }
+
+    private synchronized void recordWait(long waitMs) {
+        averageWaitMs += SMOOTHING * (waitMs - averageWaitMs);
+    }
+
+    /** Whether requests have recently waited for more than half the latency target. */
+    public synchronized boolean congested() {
+        return averageWaitMs > targetWaitMs / 2.0;
+    }
+
+    /** Seconds a shed client should wait before retrying, for a Retry-After header. */
+    public synchronized int retryAfterSeconds() {
+        return (int) Math.max(1, Math.ceil(2 * averageWaitMs / 1000));
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int queued() {
+        return queued.get();
+    }
+
+    /** Number of requests shed so far. */
+    public long shed() {
+        return shed.sum();
+    }
+
+    public int running() {
+        return maxConcurrent - running.availablePermits();
+    }
+}
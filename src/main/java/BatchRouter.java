@@ -0,0 +1,178 @@
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs batches of route queries on a bounded pool of worker threads.
+ * Queries are read one at a time from a Json array, and at most a fixed number are pending at
+ * once, so memory stays flat however long the batch is. Each result is written as one line of
+ * Json as soon as its search finishes, so results come back in completion order, tagged with
+ * the position of their query in the batch.
+ */
+public class BatchRouter {
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    /** Maximum number of queries read but not yet answered, per batch. */
+    private static final int MAX_PENDING = 4 * THREADS;
+    private static final List<String> COORDINATES =
+            Arrays.asList("start_lon", "start_lat", "end_lon", "end_lat");
+
+    private final GraphDB g;
+    private final ExecutorService pool;
+
+    public BatchRouter(GraphDB g) {
+        this.g = g;
+        this.pool = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "batch-router");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Answers every query of the Json array read from in, of the form
+     * <code>[{"start_lon": .., "start_lat": .., "end_lon": .., "end_lat": ..}, ...]</code>,
+     * writing one Json object per line to out:
+     * <code>{"index": i, "route": [node ids]}</code>, or
+     * <code>{"index": i, "error": message}</code> if query i could not be answered.
+     * A query that is not an object of numbers gets an error line of its own. Once lines have
+     * been written the request can no longer fail, so if the rest of the array cannot be
+     * parsed, the batch ends with an error line for the query where parsing stopped.
+     * Returns once every line has been written.
+     */
+    public void run(Reader in, RouteProfile profile, Writer out)
+            throws IOException, InterruptedException {
+        Semaphore pending = new Semaphore(MAX_PENDING);
+        Gson gson = new Gson();
+        JsonReader reader = new JsonReader(in);
+        try {
+            reader.beginArray();
+            for (int index = 0; ; index++) {
+                Map<String, Double> query;
+                try {
+                    if (!reader.hasNext()) {
+                        reader.endArray();
+                        break;
+                    }
+                    query = readQuery(reader);
+                } catch (IOException | IllegalStateException e) {
+                    write(out, gson.toJson(error(index, "malformed batch: " + e.getMessage())));
+                    break;
+                }
+                int i = index;
+                pending.acquire();
+                pool.execute(() -> {
+                    try {
+                        String line;
+                        try {
+                            line = gson.toJson(answer(i, query, profile));
+                        } catch (RuntimeException e) {
+                            line = gson.toJson(error(i, String.valueOf(e)));
+                        }
+                        write(out, line);
+                    } catch (IOException e) {
+                        // The client went away; the remaining queries still drain the pool.
+                    } finally {
+                        pending.release();
+                    }
+                });
+            }
+        } finally {
+            // Never return while workers may still write to out.
+            pending.acquire(MAX_PENDING);
+        }
+    }
+
+    private static void write(Writer out, String line) throws IOException {
+        synchronized (out) {
+            out.write(line);
+            out.write('\n');
+            out.flush();
+        }
+    }
+
+    private static Map<String, Object> error(int index, String message) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("index", index);
+        result.put("error", message);
+        return result;
+    }
+
+    private Map<String, Object> answer(int index, Map<String, Double> query,
+                                       RouteProfile profile) {
+        if (query == null) {
+            return error(index, "a query must be a Json object");
+        }
+        for (String name : COORDINATES) {
+            if (!query.containsKey(name)) {
+                return error(index, "start_lon, start_lat, end_lon and end_lat are required");
+            }
+            if (!Double.isFinite(query.get(name))) {
+                return error(index, name + " must be a finite number");
+            }
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("index", index);
+        GraphNode origin = g.findClosest(query.get("start_lon"), query.get("start_lat"));
+        GraphNode destination = g.findClosest(query.get("end_lon"), query.get("end_lat"));
+        List<GraphNode> route = g.route(origin, destination, profile);
+        if (route == null) {
+            result.put("error", "no route");
+            return result;
+        }
+        List<Long> ids = new ArrayList<>(route.size());
+        for (GraphNode n : route) {
+            ids.add(n.getId());
+        }
+        result.put("route", ids);
+        return result;
+    }
+
+    /**
+     * Reads the next query of the array, or skips it and returns null if it is not an object.
+     * A coordinate that is not a number is read as NaN, so that only its query fails.
+     */
+    private static Map<String, Double> readQuery(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        Map<String, Double> query = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (COORDINATES.contains(name)) {
+                query.put(name, readCoordinate(reader));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return query;
+    }
+
+    private static double readCoordinate(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER || token == JsonToken.STRING) {
+            // Read as text, as nextDouble throws on numbers too large for a double.
+            try {
+                return Double.parseDouble(reader.nextString());
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        reader.skipValue();
+        return Double.NaN;
+    }
+}
@@ -0,0 +1,52 @@
+import java.util.Arrays;
+
+/**
+ * Items bucketed into the cells of a uniform grid, CSR-style: the items of cell c are
+ * <code>items[start[c] .. start[c + 1])</code>, in item order. Built like the CSR adjacency
+ * of {@link RoadGraph}: one pass counts the items of each cell, a prefix sum turns the counts
+ * into offsets, and a second pass fills them in. Used by the spatial indexes whose items span
+ * several cells, {@link EdgeIndex} and {@link VectorTiles}.
+ */
+final class CellGrid {
+    interface CellVisitor {
+        void visit(int cell);
+    }
+
+    /** The cells of an item. */
+    interface Cells {
+        /** Visits every cell item is listed in, each once. */
+        void forEachCell(int item, CellVisitor visitor);
+    }
+
+    final int[] start;
+    final int[] items;
+
+    /**
+     * @param cellCount Number of cells of the grid.
+     * @param itemCount Number of items, numbered from 0.
+     * @param cells The cells of each item; asked twice for every item.
+     */
+    CellGrid(int cellCount, int itemCount, Cells cells) {
+        start = new int[cellCount + 1];
+        for (int i = 0; i < itemCount; i++) {
+            cells.forEachCell(i, c -> start[c + 1]++);
+        }
+        Arrays.parallelPrefix(start, Integer::sum);
+        items = new int[start[cellCount]];
+        int[] fill = Arrays.copyOf(start, cellCount);
+        for (int i = 0; i < itemCount; i++) {
+            int item = i;
+            cells.forEachCell(i, c -> items[fill[c]++] = item);
+        }
+    }
+
+    /**
+     * Side of the cells of a grid over a width by height box: minSide, grown until the grid
+     * has at most about maxCells cells, so that the grid is sized by what it holds rather than
+     * by the box. Far apart regions, or one long thin region, would otherwise take a huge grid.
+     */
+    static double cellSide(double width, double height, int maxCells, double minSide) {
+        return Math.max(minSide, Math.max(Math.sqrt(width * height / maxCells),
+                Math.max(width, height) / maxCells));
+    }
+}
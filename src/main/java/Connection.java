@@ -1,45 +1,33 @@
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
+ * A connected run of road nodes from a single way, along with the way's
+ * name and highway class. Nodes are referred to by their NodeTable index.
  * Created by davidvakshlyak on 8/1/16.
  */
 public class Connection {
     String name;
+    String highway;
     Long id;
-    ArrayList<GraphNode> nodes;
+    int[] nodes;
     int size;
 
-    public Connection( String name, Long id, ArrayList<GraphNode> nodes) {
-        this.name = name;
-        this.id = id;
+    public Connection(WayRecord way, int[] nodes) {
+        this.name = way.name();
+        this.highway = way.highway();
+        this.id = way.id();
         this.nodes = nodes;
-        connectAll(this.nodes);
-        size = this.nodes.size();
+        size = this.nodes.length;
     }
 
-    public Connection( Long id, ArrayList<GraphNode> nodes) {
-        this.name = null;
-        this.id = id;
-        this.nodes = nodes;
-        connectAll(this.nodes);
-        size = this.nodes.size();
+    public int[] nodes() {
+        return nodes;
     }
 
-    public ArrayList<GraphNode> nodes() {
-        return nodes;
+    public String name() {
+        return name;
     }
 
-    /** Connects all nodes**/
-    private void connectAll(ArrayList<GraphNode> nodes){
-        for(int i = 0; i < nodes.size() - 1; i++){
-            GraphNode curr = nodes.get(i);
-            GraphNode next = nodes.get(i+1);
-            curr.addNeighbor(next);
-            next.addNeighbor(curr);
-        }
+    public String highway() {
+        return highway;
     }
 
 }
-
@@ -0,0 +1,125 @@
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Many-to-many travel cost tables. Targets are grouped into buckets by the graph node they
+ * snapped to; each source then runs a single one-to-many Dijkstra search that fills a cell for
+ * every target in the bucket of a node as that node is settled, and stops as soon as every
+ * bucket has been reached.
+ * <p>
+ *     Sources are split into one chunk per core, searched in parallel on a dedicated pool.
+ *     Each chunk takes one pooled {@link SearchWorkspace} for all of its searches, so waiting
+ *     for a workspace blocks a thread of this pool, never one of the common ForkJoin pool.
+ * </p>
+ */
+public class DistanceMatrix {
+    /** Cost reported for a target that cannot be reached from a source. */
+    public static final float UNREACHABLE = -1f;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    /**
+     * Runs the chunks of every matrix. Past MAX_QUEUED waiting chunks, the thread computing
+     * the matrix searches the chunk itself.
+     */
+    private static final int MAX_QUEUED = 4 * THREADS;
+    private static final ExecutorService POOL = new ThreadPoolExecutor(THREADS, THREADS, 0,
+            TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_QUEUED), r -> {
+                Thread t = new Thread(r, "distance-matrix");
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    private DistanceMatrix() {
+    }
+
+    /**
+     * Computes the cost from every source node to every target node under profile.
+     * @param graph Road graph.
+     * @param sources Source node indices.
+     * @param targets Target node indices; may repeat.
+     * @param profile Cost model.
+     * @return Row-major costs: the cost from sources[i] to targets[j] is at
+     * <code>i * targets.length + j</code>, or UNREACHABLE.
+     * @throws IllegalArgumentException If the table has more cells than an array can hold.
+     */
+    public static float[] compute(RoadGraph graph, int[] sources, int[] targets,
+                                  RouteProfile profile) {
+        // Bucket the target columns by node, CSR-style, ordered by node index.
+        int[] order = IntStream.range(0, targets.length).boxed()
+                .sorted((a, b) -> Integer.compare(targets[a], targets[b]))
+                .mapToInt(Integer::intValue).toArray();
+        int[] bucketNode = new int[targets.length];
+        int[] bucketStart = new int[targets.length + 1];
+        int buckets = 0;
+        for (int k = 0; k < order.length; k++) {
+            if (k == 0 || targets[order[k]] != targets[order[k - 1]]) {
+                bucketNode[buckets] = targets[order[k]];
+                bucketStart[buckets++] = k;
+            }
+        }
+        bucketStart[buckets] = order.length;
+        final int bucketCount = buckets;
+
+        long cells = (long) sources.length * targets.length;
+        if (cells > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Matrix of " + cells + " cells is too large.");
+        }
+        float[] costs = new float[(int) cells];
+        Arrays.fill(costs, UNREACHABLE);
+        double[] weights = graph.weights(profile);
+        int chunks = Math.min(sources.length, THREADS);
+        CompletableFuture<?>[] rows = new CompletableFuture<?>[chunks];
+        for (int c = 0; c < chunks; c++) {
+            int chunk = c;
+            rows[c] = CompletableFuture.runAsync(() -> {
+                SearchWorkspace ws = SearchWorkspace.acquire(graph);
+                try {
+                    for (int i = chunk; i < sources.length; i += chunks) {
+                        search(graph, weights, ws, sources[i], bucketNode, bucketStart, order,
+                                bucketCount, costs, i * targets.length);
+                        ws.reset();
+                    }
+                } finally {
+                    ws.release();
+                }
+            }, POOL);
+        }
+        CompletableFuture.allOf(rows).join();
+        return costs;
+    }
+
+    private static void search(RoadGraph graph, double[] weights, SearchWorkspace ws,
+                               int source, int[] bucketNode, int[] bucketStart, int[] order,
+                               int bucketCount, float[] costs, int row) {
+        int remaining = bucketCount;
+        ws.visit(source, 0, SearchWorkspace.NONE);
+        ws.fringe.push(0, source);
+        while (!ws.fringe.isEmpty() && remaining > 0) {
+            int current = ws.fringe.poll();
+            if (ws.settled[current]) {
+                continue;
+            }
+            ws.settled[current] = true;
+            int b = Arrays.binarySearch(bucketNode, 0, bucketCount, current);
+            if (b >= 0) {
+                for (int k = bucketStart[b]; k < bucketStart[b + 1]; k++) {
+                    costs[row + order[k]] = (float) ws.dist[current];
+                }
+                remaining--;
+            }
+            for (int e = graph.firstEdge(current); e < graph.lastEdge(current); e++) {
+                int neighbor = graph.target(e);
+                double cost = ws.dist[current] + weights[e];
+                if (cost < ws.dist[neighbor]) {
+                    ws.visit(neighbor, cost, current);
+                    ws.fringe.push(cost, neighbor);
+                }
+            }
+        }
+    }
+}
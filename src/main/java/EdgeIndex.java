@@ -0,0 +1,226 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Uniform grid over the road segments of a {@link RoadGraph}. Each undirected edge is a
+ * segment, listed in every cell its bounding box overlaps, in a {@link CellGrid}; cells are
+ * at least MIN_CELL_METERS wide, and there are no more of them than a few per segment.
+ * Geometry is done in a local equirectangular projection in meters, which is accurate to well
+ * under a meter over the extent of a city.
+ */
+public class EdgeIndex {
+    private static final double METERS_PER_DEGREE_LAT = 111320;
+    /** Smallest side of a grid cell, in meters. */
+    private static final double MIN_CELL_METERS = 100;
+    /** Average number of segments per cell the grid is sized for, at the least. */
+    private static final int SEGMENTS_PER_CELL = 4;
+
+    private final RoadGraph graph;
+    private final double metersPerDegreeLon;
+    private final double minX, minY, cellMeters;
+    private final int columns, rows;
+    private final int[] segU, segV;
+    private final double[] segLength;
+    private final int[] cellStart;
+    private final int[] cellSegments;
+
+    public EdgeIndex(RoadGraph graph) {
+        this.graph = graph;
+        double latSum = 0;
+        int count = 0;
+        int segments = 0;
+        for (int u = 0; u < graph.size(); u++) {
+            if (graph.degree(u) > 0) {
+                latSum += graph.lat(u);
+                count++;
+            }
+            for (int e = graph.firstEdge(u); e < graph.lastEdge(u); e++) {
+                if (u < graph.target(e)) {
+                    segments++;
+                }
+            }
+        }
+        metersPerDegreeLon = METERS_PER_DEGREE_LAT
+                * Math.cos(Math.toRadians(count == 0 ? 0 : latSum / count));
+        segU = new int[segments];
+        segV = new int[segments];
+        segLength = new double[segments];
+        double[] meters = graph.weights(RouteProfile.DISTANCE);
+        double loX = Double.POSITIVE_INFINITY, loY = Double.POSITIVE_INFINITY;
+        double hiX = Double.NEGATIVE_INFINITY, hiY = Double.NEGATIVE_INFINITY;
+        int s = 0;
+        for (int u = 0; u < graph.size(); u++) {
+            for (int e = graph.firstEdge(u); e < graph.lastEdge(u); e++) {
+                int v = graph.target(e);
+                if (u < v) {
+                    segU[s] = u;
+                    segV[s] = v;
+                    segLength[s++] = meters[e];
+                }
+            }
+            if (graph.degree(u) > 0) {
+                loX = Math.min(loX, x(graph.lon(u)));
+                hiX = Math.max(hiX, x(graph.lon(u)));
+                loY = Math.min(loY, y(graph.lat(u)));
+                hiY = Math.max(hiY, y(graph.lat(u)));
+            }
+        }
+        if (count == 0) {
+            loX = hiX = loY = hiY = 0;
+        }
+        minX = loX;
+        minY = loY;
+        double width = hiX - loX, height = hiY - loY;
+        cellMeters = CellGrid.cellSide(width, height,
+                Math.max(1, segments / SEGMENTS_PER_CELL), MIN_CELL_METERS);
+        columns = (int) (width / cellMeters) + 1;
+        rows = (int) (height / cellMeters) + 1;
+
+        CellGrid grid = new CellGrid(columns * rows, segments, this::forEachCell);
+        cellStart = grid.start;
+        cellSegments = grid.items;
+    }
+
+    private void forEachCell(int segment, CellGrid.CellVisitor visitor) {
+        double ux = x(graph.lon(segU[segment])), uy = y(graph.lat(segU[segment]));
+        double vx = x(graph.lon(segV[segment])), vy = y(graph.lat(segV[segment]));
+        int x0 = column(Math.min(ux, vx)), x1 = column(Math.max(ux, vx));
+        int y0 = row(Math.min(uy, vy)), y1 = row(Math.max(uy, vy));
+        for (int cy = y0; cy <= y1; cy++) {
+            for (int cx = x0; cx <= x1; cx++) {
+                visitor.visit(cy * columns + cx);
+            }
+        }
+    }
+
+    /**
+     * Returns the segments passing within radius meters of (lon, lat), projected, closest
+     * first; at most max of them.
+     */
+    public List<EdgeSnap> candidates(double lon, double lat, double radius, int max) {
+        double px = x(lon), py = y(lat);
+        int x0 = column(px - radius), x1 = column(px + radius);
+        int y0 = row(py - radius), y1 = row(py + radius);
+        List<EdgeSnap> found = new ArrayList<>();
+        for (int cy = y0; cy <= y1; cy++) {
+            for (int cx = x0; cx <= x1; cx++) {
+                int c = cy * columns + cx;
+                for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+                    EdgeSnap snap = project(cellSegments[k], px, py);
+                    if (snap.distance <= radius) {
+                        found.add(snap);
+                    }
+                }
+            }
+        }
+        // A segment is listed in every cell it overlaps; keep one snap per segment.
+        found.sort(Comparator.comparingInt((EdgeSnap e) -> e.segment));
+        List<EdgeSnap> unique = new ArrayList<>();
+        for (EdgeSnap snap : found) {
+            if (unique.isEmpty() || unique.get(unique.size() - 1).segment != snap.segment) {
+                unique.add(snap);
+            }
+        }
+        unique.sort(Comparator.comparingDouble((EdgeSnap e) -> e.distance));
+        return unique.size() > max ? new ArrayList<>(unique.subList(0, max)) : unique;
+    }
+
+    /**
+     * Returns the projection of (lon, lat) onto the closest segment, or null if there are no
+     * segments or the point is not finite. Rings of cells are searched outwards from the point's
+     * cell until no unvisited cell can hold anything closer, so the cost depends on local
+     * density, not on graph size.
+     */
+    public EdgeSnap nearest(double lon, double lat) {
+        if (!Double.isFinite(lon) || !Double.isFinite(lat)) {
+            return null;
+        }
+        double px = x(lon), py = y(lat);
+        int cx = column(px), cy = row(py);
+        EdgeSnap best = null;
+        int maxRing = Math.max(columns, rows);
+        for (int r = 0; r <= maxRing; r++) {
+            for (int y = cy - r; y <= cy + r; y++) {
+                if (y < 0 || y >= rows) {
+                    continue;
+                }
+                boolean edgeRow = (y == cy - r || y == cy + r);
+                for (int x = cx - r; x <= cx + r; x += (edgeRow || r == 0) ? 1 : 2 * r) {
+                    if (x < 0 || x >= columns) {
+                        continue;
+                    }
+                    int c = y * columns + x;
+                    for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+                        EdgeSnap snap = project(cellSegments[k], px, py);
+                        if (best == null || snap.distance < best.distance) {
+                            best = snap;
+                        }
+                    }
+                }
+            }
+            if (best != null && best.distance <= coveredDistance(px, py, cx, cy, r)) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Distance from (px, py) to the closest cell outside the rings 0..r around (cx, cy);
+     * infinite when those rings already cover the whole grid.
+     */
+    private double coveredDistance(double px, double py, int cx, int cy, int r) {
+        double d = Double.POSITIVE_INFINITY;
+        if (cx - r > 0) {
+            d = Math.min(d, px - (minX + (cx - r) * cellMeters));
+        }
+        if (cx + r < columns - 1) {
+            d = Math.min(d, minX + (cx + r + 1) * cellMeters - px);
+        }
+        if (cy - r > 0) {
+            d = Math.min(d, py - (minY + (cy - r) * cellMeters));
+        }
+        if (cy + r < rows - 1) {
+            d = Math.min(d, minY + (cy + r + 1) * cellMeters - py);
+        }
+        return d;
+    }
+
+    /** Projects the point (px, py), in projected meters, onto segment. */
+    private EdgeSnap project(int segment, double px, double py) {
+        int u = segU[segment], v = segV[segment];
+        double ux = x(graph.lon(u)), uy = y(graph.lat(u));
+        double dx = x(graph.lon(v)) - ux, dy = y(graph.lat(v)) - uy;
+        double len2 = dx * dx + dy * dy;
+        double t = len2 == 0 ? 0 : ((px - ux) * dx + (py - uy) * dy) / len2;
+        t = Math.max(0, Math.min(1, t));
+        double sx = ux + t * dx, sy = uy + t * dy;
+        double distance = Math.sqrt((px - sx) * (px - sx) + (py - sy) * (py - sy));
+        return new EdgeSnap(segment, u, v, t, lon(sx), lat(sy), distance, segLength[segment]);
+    }
+
+    private double x(double lon) {
+        return lon * metersPerDegreeLon;
+    }
+
+    private double y(double lat) {
+        return lat * METERS_PER_DEGREE_LAT;
+    }
+
+    private double lon(double x) {
+        return x / metersPerDegreeLon;
+    }
+
+    private double lat(double y) {
+        return y / METERS_PER_DEGREE_LAT;
+    }
+
+    private int column(double x) {
+        return Math.max(0, Math.min(columns - 1, (int) Math.floor((x - minX) / cellMeters)));
+    }
+
+    private int row(double y) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor((y - minY) / cellMeters)));
+    }
+}
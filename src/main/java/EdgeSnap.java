@@ -0,0 +1,31 @@
+/**
+ * The projection of a point onto a road segment (u, v): the closest point of the segment,
+ * at fraction t of the way from u to v, and its distance to the projected point.
+ */
+public class EdgeSnap {
+    final int segment;
+    final int u, v;
+    final double t;
+    final double lon, lat;
+    /** Distance from the projected point, in meters. */
+    final double distance;
+    /** Length of the whole segment, in meters. */
+    final double length;
+
+    EdgeSnap(int segment, int u, int v, double t, double lon, double lat,
+             double distance, double length) {
+        this.segment = segment;
+        this.u = u;
+        this.v = v;
+        this.t = t;
+        this.lon = lon;
+        this.lat = lat;
+        this.distance = distance;
+        this.length = length;
+    }
+
+    /** Distance along the segment from the snapped point to node, in meters. */
+    double offsetTo(int node) {
+        return node == u ? t * length : (1 - t) * length;
+    }
+}
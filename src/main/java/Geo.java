@@ -0,0 +1,27 @@
+/**
+ * Distance helpers on the WGS84 sphere. Coordinates are in degrees, distances in meters.
+ */
+public class Geo {
+    /** Mean earth radius, in meters. */
+    public static final double EARTH_RADIUS = 6371008.8;
+
+    private Geo() {
+    }
+
+    /** Great-circle (haversine) distance between (lon1, lat1) and (lon2, lat2). */
+    public static double distance(double lon1, double lat1, double lon2, double lat2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double s = Math.sin(dLat / 2);
+        double t = Math.sin(dLon / 2);
+        double a = s * s + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * t * t;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /** Euclidean distance between two points, in degrees. */
+    public static double euclid(double lon1, double lat1, double lon2, double lat2) {
+        double dLon = lon2 - lon1;
+        double dLat = lat2 - lat1;
+        return Math.sqrt(dLon * dLon + dLat * dLat);
+    }
+}
@@ -1,10 +1,8 @@
-import org.xml.sax.SAXException;
-
 import java.io.File;
 import java.io.IOException;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.stream.XMLStreamException;
 
 /**
  * Wraps the parsing functionality of the MapDBHandler as an example.
@@ -12,25 +10,92 @@ import javax.xml.parsers.SAXParserFactory;
  * @author Alan Yao
  */
 public class GraphDB {
+    private MapDBHandler maphandler;
+    private Router router;
+    /** Routes drawn on rasters, on workspaces of their own. */
+    private Router rasterRouter;
+    private NodeIndex index;
+    private EdgeIndex edgeIndex;
+
     /**
-     * Example constructor shows how to create and start an XML parser.
+     * Example constructor shows how to create and start a streaming XML parser.
      * @param dbPath Path to the XML file to be parsed.
      */
-    private MapDBHandler maphandler;
-
     public GraphDB(String dbPath) {
         try {
             File inputFile = new File(dbPath);
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
             maphandler = new MapDBHandler(this);
-            saxParser.parse(inputFile, maphandler);
+            maphandler.parse(inputFile);
             maphandler.clean();
-        } catch (ParserConfigurationException | SAXException | IOException e) {
+            router = new Router(maphandler.graph());
+            rasterRouter = new Router(maphandler.graph(), SearchWorkspace.RASTER);
+            index = new NodeIndex(maphandler.graph());
+            edgeIndex = new EdgeIndex(maphandler.graph());
+        } catch (XMLStreamException | IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Loads the OSM extracts of every region into one graph. All ways are read before any
+     * node, so that a node on the boundary of two extracts is kept if a way of either one
+     * uses it. Time and heap growth are reported for each region and pass, and the time of
+     * each pass is also recorded in {@link Metrics}.
+     * @param regions Regions whose extracts are to be merged.
+     * @throws IllegalStateException If an extract cannot be read or parsed.
+     */
+    public GraphDB(List<Region> regions) {
+        maphandler = new MapDBHandler(this);
+        for (Region r : regions) {
+            long start = System.nanoTime();
+            long heap = usedHeap();
+            int ways = maphandler.wayCount();
+            int nodes = maphandler.nodeCount();
+            try {
+                maphandler.readWays(new File(r.osmPath()));
+            } catch (XMLStreamException | IOException e) {
+                throw new IllegalStateException("Could not read the ways of " + r.osmPath(), e);
+            }
+            Metrics.GRAPH_WAYS.record(System.nanoTime() - start);
+            report(r, "ways", start, heap, String.format("%d ways, %d new road nodes",
+                    maphandler.wayCount() - ways, maphandler.nodeCount() - nodes));
+        }
+        for (Region r : regions) {
+            long start = System.nanoTime();
+            long heap = usedHeap();
+            try {
+                maphandler.readNodes(new File(r.osmPath()));
+            } catch (XMLStreamException | IOException e) {
+                throw new IllegalStateException("Could not read the nodes of " + r.osmPath(),
+                        e);
+            }
+            Metrics.GRAPH_NODES.record(System.nanoTime() - start);
+            report(r, "nodes", start, heap, "");
+        }
+        long start = System.nanoTime();
+        maphandler.buildGraph();
+        maphandler.clean();
+        router = new Router(maphandler.graph());
+        rasterRouter = new Router(maphandler.graph(), SearchWorkspace.RASTER);
+        index = new NodeIndex(maphandler.graph());
+        edgeIndex = new EdgeIndex(maphandler.graph());
+        Metrics.GRAPH_BUILD.record(System.nanoTime() - start);
+        System.out.println(String.format("Built graph: %d nodes, %d edges in %d ms",
+                maphandler.graph().size(), maphandler.graph().edgeCount(),
+                (System.nanoTime() - start) / 1000000));
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static void report(Region r, String pass, long start, long heap, String detail) {
+        System.out.println(String.format("Loaded %s (%s) %s pass in %d ms, heap %+d MB %s",
+                r.name(), r.osmPath(), pass, (System.nanoTime() - start) / 1000000,
+                (usedHeap() - heap) >> 20, detail));
+    }
+
     /**
      * Helper to process strings into their "cleaned" form, ignoring punctuation and capitalization.
      * @param s Input string.
@@ -41,7 +106,139 @@ public class GraphDB {
     }
 
     public GraphNode findClosest(Double lon, Double lat){
-        return maphandler.findClosest(lon, lat);
+        int n = index.nearest(lon, lat);
+        return n < 0 ? null : graph().node(n);
+    }
+
+    /** Snaps each (lons[i], lats[i]) to the index of its closest road node, in one batch. */
+    public int[] findClosest(double[] lons, double[] lats) {
+        return index.nearest(lons, lats);
+    }
+
+    public RoadGraph graph() {
+        return maphandler.graph();
+    }
+
+    /** Spatial index over the road segments of the graph. */
+    public EdgeIndex edgeIndex() {
+        return edgeIndex;
+    }
+
+    /**
+     * Returns the GraphNodes of the cheapest route from origin to destination under profile,
+     * or null if there is none.
+     */
+    public List<GraphNode> route(GraphNode origin, GraphNode destination, RouteProfile profile) {
+        int[] path = router.route(origin.index(), destination.index(), profile);
+        if (path == null) {
+            return null;
+        }
+        List<GraphNode> route = new ArrayList<>(path.length);
+        for (int n : path) {
+            route.add(graph().node(n));
+        }
+        return route;
+    }
+
+    /**
+     * Returns the cheapest route between two points under profile, or null if there is none
+     * or a point has no road to snap to.
+     * With snapToEdge, the points are snapped onto the closest road segment and the route runs
+     * from and to the snapped points; otherwise they are snapped to the closest road node.
+     */
+    public RoutePath route(double startLon, double startLat, double endLon, double endLat,
+                           RouteProfile profile, boolean snapToEdge) {
+        return route(router, startLon, startLat, endLon, endLat, profile, snapToEdge);
+    }
+
+    /**
+     * Same as {@link #route(double, double, double, double, RouteProfile, boolean)}, for a
+     * route drawn on a raster: its search does not wait behind those of the routing endpoints.
+     */
+    public RoutePath rasterRoute(double startLon, double startLat, double endLon,
+                                 double endLat, RouteProfile profile, boolean snapToEdge) {
+        return route(rasterRouter, startLon, startLat, endLon, endLat, profile, snapToEdge);
+    }
+
+    private RoutePath route(Router router, double startLon, double startLat, double endLon,
+                            double endLat, RouteProfile profile, boolean snapToEdge) {
+        RoadGraph graph = graph();
+        double[] weights = graph.weights(profile);
+        double[] meters = graph.weights(RouteProfile.DISTANCE);
+        long start = System.nanoTime();
+        if (!snapToEdge) {
+            int origin = index.nearest(startLon, startLat);
+            int destination = index.nearest(endLon, endLat);
+            Metrics.ROUTE_SNAP.record(System.nanoTime() - start);
+            if (origin < 0 || destination < 0) {
+                return null;
+            }
+            int[] nodes = router.route(origin, destination, profile);
+            if (nodes == null) {
+                return null;
+            }
+            double[] lons = new double[nodes.length];
+            double[] lats = new double[nodes.length];
+            double cost = 0;
+            double distance = 0;
+            for (int i = 0; i < nodes.length; i++) {
+                lons[i] = graph.lon(nodes[i]);
+                lats[i] = graph.lat(nodes[i]);
+                if (i > 0) {
+                    int e = graph.edge(nodes[i - 1], nodes[i]);
+                    cost += weights[e];
+                    distance += meters[e];
+                }
+            }
+            return new RoutePath(nodes, lons, lats, cost, distance);
+        }
+
+        EdgeSnap origin = edgeIndex.nearest(startLon, startLat);
+        EdgeSnap destination = edgeIndex.nearest(endLon, endLat);
+        Metrics.ROUTE_SNAP.record(System.nanoTime() - start);
+        if (origin == null || destination == null) {
+            return null;
+        }
+        int[] nodes = router.route(origin, destination, profile);
+        if (nodes == null) {
+            return null;
+        }
+        double[] lons = new double[nodes.length + 2];
+        double[] lats = new double[nodes.length + 2];
+        lons[0] = origin.lon;
+        lats[0] = origin.lat;
+        for (int i = 0; i < nodes.length; i++) {
+            lons[i + 1] = graph.lon(nodes[i]);
+            lats[i + 1] = graph.lat(nodes[i]);
+        }
+        lons[nodes.length + 1] = destination.lon;
+        lats[nodes.length + 1] = destination.lat;
+        double cost;
+        double distance;
+        if (nodes.length == 0) {
+            double fraction = Math.abs(destination.t - origin.t);
+            cost = fraction * weights[graph.edge(origin.u, origin.v)];
+            distance = fraction * origin.length;
+        } else {
+            int first = nodes[0];
+            int last = nodes[nodes.length - 1];
+            double startFraction = first == origin.u ? origin.t : 1 - origin.t;
+            double endFraction = last == destination.u ? destination.t : 1 - destination.t;
+            cost = startFraction * weights[graph.edge(origin.u, origin.v)]
+                    + endFraction * weights[graph.edge(destination.u, destination.v)];
+            distance = origin.offsetTo(first) + destination.offsetTo(last);
+            for (int i = 1; i < nodes.length; i++) {
+                int e = graph.edge(nodes[i - 1], nodes[i]);
+                cost += weights[e];
+                distance += meters[e];
+            }
+        }
+        return new RoutePath(nodes, lons, lats, cost, distance);
+    }
+
+    /** Road connections with their name and highway class, in OSM file order. */
+    public List<Connection> connections() {
+        return maphandler.connections();
     }
 
 
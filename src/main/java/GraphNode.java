@@ -1,12 +1,11 @@
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Set;
 
 /**
  * GraphNode is the node representation in the Graph of Berkeley.
  * Every GraphNode has an id, and a pair of Coordinates (lon, lat).
  * GraphNodes can also be named (point features),
  * or have parents/successors (nodes in ways).
+ * Neighbors are not stored here; they are read from the CSR adjacency of the RoadGraph.
  *
  * Created by davidvakshlyak on 8/1/16.
  */
@@ -14,43 +13,21 @@ public class GraphNode {
     Double lat, lon;
     Long id;
     String name;
-    GraphNode parent;
-    ArrayList<GraphNode> neighbors;
-    Double dist;
+    final RoadGraph graph;
+    final int index;
 
 
 
 
 
-    public GraphNode(Long id, Double lon, Double lat) {
-        this.id = id;
-        this.lon = lon;
-        this.lat = lat;
-        this.name = null;
-        this.neighbors = new ArrayList<>();
-        this.parent = null;
-        this.dist = Double.MAX_VALUE;
-    }
-
-    public void reset(){
-        this.dist = Double.MAX_VALUE;
-        this.parent = null;
-    }
-
-    public Double dist(){
-        return this.dist;
-    }
-
-    public void setDist(Double dist){
-        this.dist = dist;
-    }
-
-    public void setParent(GraphNode parent) {
-        this.parent = parent;
-    }
-
-    public GraphNode getParent() {
-        return parent;
+    public GraphNode(RoadGraph graph, int index) {
+        NodeTable table = graph.table();
+        this.graph = graph;
+        this.index = index;
+        this.id = table.id(index);
+        this.lon = table.lon(index);
+        this.lat = table.lat(index);
+        this.name = table.name(index);
     }
 
     public void setName(String name) {
@@ -58,11 +35,15 @@ public class GraphNode {
     }
 
     public ArrayList<GraphNode> neighbors() {
+        ArrayList<GraphNode> neighbors = new ArrayList<>(graph.degree(index));
+        for (int e = graph.firstEdge(index); e < graph.lastEdge(index); e++) {
+            neighbors.add(graph.node(graph.target(e)));
+        }
         return neighbors;
     }
 
-    public void addNeighbor(GraphNode n) {
-        if (!neighbors.contains(n)) neighbors.add(n);
+    public int index() {
+        return index;
     }
 
     public Long getId() {
@@ -70,7 +51,7 @@ public class GraphNode {
     }
 
     public boolean isConnected() {
-        return neighbors.size() > 0;
+        return graph.degree(index) > 0;
     }
 
 
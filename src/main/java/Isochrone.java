@@ -0,0 +1,181 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Everything reachable from a node within a cost limit.
+ * The search is a one-to-all Dijkstra that stops at the limit, run on a pooled
+ * {@link SearchWorkspace}, so repeated queries reuse the same arrays. The reached area is
+ * approximated by a grid: every cell holding a reached node is filled, and the outline of the
+ * filled cells is traced into polygon rings.
+ */
+public class Isochrone {
+    private static final double METERS_PER_DEGREE_LAT = 111320;
+    /**
+     * Most cells of an outline grid. Past it, the cells are doubled in size until the outline
+     * fits, so that a large limit costs a coarser outline rather than more memory.
+     */
+    static final int MAX_OUTLINE_CELLS = 256 * 256;
+
+    /** Node indices reached within the limit, in order of cost. */
+    final int[] nodes;
+    /** Cost of reaching each of those nodes. */
+    final double[] costs;
+    /**
+     * Outline rings, each a closed list of {lon, lat} points. Outer rings run counterclockwise
+     * and holes clockwise.
+     */
+    final List<double[][]> rings;
+
+    private Isochrone(int[] nodes, double[] costs, List<double[][]> rings) {
+        this.nodes = nodes;
+        this.costs = costs;
+        this.rings = rings;
+    }
+
+    /**
+     * Computes the nodes reachable from origin within limit under profile, and their outline.
+     * @param graph Road graph.
+     * @param origin Node index to search from.
+     * @param limit Maximum cost, in the units of profile.
+     * @param profile Cost model.
+     * @param cellMeters Side of the outline grid cells, in meters, at the finest. Cells are
+     *                   coarsened as needed to stay within MAX_OUTLINE_CELLS.
+     */
+    public static Isochrone compute(RoadGraph graph, int origin, double limit,
+                                    RouteProfile profile, double cellMeters) {
+        SearchWorkspace ws = SearchWorkspace.acquire(graph);
+        double[] weights = graph.weights(profile);
+        int[] nodes = new int[64];
+        double[] costs = new double[64];
+        int count = 0;
+        try {
+            ws.visit(origin, 0, SearchWorkspace.NONE);
+            ws.fringe.push(0, origin);
+            while (!ws.fringe.isEmpty() && ws.fringe.peekKey() <= limit) {
+                int current = ws.fringe.poll();
+                if (ws.settled[current]) {
+                    continue;
+                }
+                ws.settled[current] = true;
+                if (count == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, count * 2);
+                    costs = Arrays.copyOf(costs, count * 2);
+                }
+                nodes[count] = current;
+                costs[count++] = ws.dist[current];
+                for (int e = graph.firstEdge(current); e < graph.lastEdge(current); e++) {
+                    int neighbor = graph.target(e);
+                    double cost = ws.dist[current] + weights[e];
+                    if (cost < ws.dist[neighbor] && cost <= limit) {
+                        ws.visit(neighbor, cost, current);
+                        ws.fringe.push(cost, neighbor);
+                    }
+                }
+            }
+        } finally {
+            ws.release();
+        }
+        nodes = Arrays.copyOf(nodes, count);
+        costs = Arrays.copyOf(costs, count);
+        return new Isochrone(nodes, costs, outline(graph, nodes, graph.lat(origin), cellMeters));
+    }
+
+    /** Traces the outline of the grid cells that contain at least one of nodes. */
+    private static List<double[][]> outline(RoadGraph graph, int[] nodes, double lat0,
+                                            double cellMeters) {
+        double cellLat = cellMeters / METERS_PER_DEGREE_LAT;
+        double cellLon = cellLat / Math.cos(Math.toRadians(lat0));
+        double minLon = Double.POSITIVE_INFINITY, minLat = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        for (int n : nodes) {
+            minLon = Math.min(minLon, graph.lon(n));
+            maxLon = Math.max(maxLon, graph.lon(n));
+            minLat = Math.min(minLat, graph.lat(n));
+            maxLat = Math.max(maxLat, graph.lat(n));
+        }
+        List<double[][]> rings = new ArrayList<>();
+        if (nodes.length == 0) {
+            return rings;
+        }
+        // One empty cell of margin on every side, so every boundary edge is inside the grid.
+        while (((long) ((maxLon - minLon) / cellLon) + 3)
+                * ((long) ((maxLat - minLat) / cellLat) + 3) > MAX_OUTLINE_CELLS) {
+            cellLon *= 2;
+            cellLat *= 2;
+        }
+        int w = (int) ((maxLon - minLon) / cellLon) + 3;
+        int h = (int) ((maxLat - minLat) / cellLat) + 3;
+        double originLon = minLon - cellLon;
+        double originLat = minLat - cellLat;
+        boolean[] filled = new boolean[w * h];
+        for (int n : nodes) {
+            int x = (int) ((graph.lon(n) - originLon) / cellLon);
+            int y = (int) ((graph.lat(n) - originLat) / cellLat);
+            filled[y * w + x] = true;
+        }
+
+        // Boundary edges, directed with the filled cell on their left, keyed by start vertex.
+        // A vertex where two filled cells touch diagonally starts two edges.
+        int vw = w + 1;
+        int[] out1 = new int[vw * (h + 1)];
+        int[] out2 = new int[vw * (h + 1)];
+        Arrays.fill(out1, -1);
+        Arrays.fill(out2, -1);
+        for (int y = 1; y < h - 1; y++) {
+            for (int x = 1; x < w - 1; x++) {
+                if (!filled[y * w + x]) {
+                    continue;
+                }
+                if (!filled[(y - 1) * w + x]) {
+                    addEdge(out1, out2, y * vw + x, y * vw + x + 1);
+                }
+                if (!filled[y * w + x + 1]) {
+                    addEdge(out1, out2, y * vw + x + 1, (y + 1) * vw + x + 1);
+                }
+                if (!filled[(y + 1) * w + x]) {
+                    addEdge(out1, out2, (y + 1) * vw + x + 1, (y + 1) * vw + x);
+                }
+                if (!filled[y * w + x - 1]) {
+                    addEdge(out1, out2, (y + 1) * vw + x, y * vw + x);
+                }
+            }
+        }
+
+        for (int start = 0; start < out1.length; start++) {
+            while (out1[start] >= 0) {
+                List<double[]> ring = new ArrayList<>();
+                int v = start;
+                int lastDir = Integer.MIN_VALUE;
+                do {
+                    int next = takeEdge(out1, out2, v);
+                    int dir = next - v;
+                    if (dir != lastDir) {
+                        ring.add(new double[] {originLon + (v % vw) * cellLon,
+                            originLat + (v / vw) * cellLat});
+                        lastDir = dir;
+                    }
+                    v = next;
+                } while (v != start);
+                ring.add(ring.get(0));
+                rings.add(ring.toArray(new double[ring.size()][]));
+            }
+        }
+        return rings;
+    }
+
+    private static void addEdge(int[] out1, int[] out2, int from, int to) {
+        if (out1[from] < 0) {
+            out1[from] = to;
+        } else {
+            out2[from] = to;
+        }
+    }
+
+    private static int takeEdge(int[] out1, int[] out2, int from) {
+        int to = out1[from];
+        out1[from] = out2[from];
+        out2[from] = -1;
+        return to;
+    }
+}
@@ -0,0 +1,367 @@
+import com.google.gson.Gson;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load generator for the server: replays recorded traffic, or simulates users panning and
+ * zooming the map, over HTTP, and reports throughput and latency quantiles per endpoint along
+ * with the GC pauses of the run. Run with options of the form --name=value:
+ * <pre>
+ * --url          Server to load, default http://localhost:4567.
+ * --in-process   Start a MapServer in this JVM first, so that its GC pauses are reported.
+ * --traffic      Json lines file of requests to replay, cycled over; see {@link Line}.
+ *                Without it, synthetic pan/zoom sessions are generated.
+ * --sessions     Number of synthetic sessions, default 16.
+ * --concurrency  Number of requests in flight at most, default 8.
+ * --rate         Open-loop arrival rate in requests per second, default 0 for closed loop.
+ * --duration     Seconds of measured load, default 30.
+ * --warmup       Seconds of load before measuring, default 10.
+ * --seed         Seed of the session simulation and arrival times, default 42.
+ * </pre>
+ * In closed loop, each of the concurrency workers sends a request as soon as its previous one
+ * is answered. In open loop, requests arrive as a Poisson process at the given rate whether or
+ * not earlier ones are answered, and latency is counted from the intended arrival, so that a
+ * server falling behind shows up in the quantiles instead of slowing the load down. Arrivals
+ * still waiting for a free worker when the measured period ends are not sent, and are reported
+ * as dropped.
+ */
+public class LoadGenerator {
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    /**
+     * One request of a traffic file, such as
+     * <code>{"path": "/raster?ullon=-122.24&amp;ullat=37.87&amp;...&amp;w=800&amp;h=600"}</code>.
+     * Requests with a body, such as those to /matrix, are sent as POSTs.
+     */
+    static class Line {
+        String path;
+        String body;
+    }
+
+    /** Outcomes of the requests to one endpoint. */
+    private static class Endpoint {
+        final Histogram latency = new Histogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder shed = new LongAdder();
+        /** Open-loop arrivals not sent by the end of the run. */
+        final LongAdder dropped = new LongAdder();
+    }
+
+    /**
+     * A simulated user: a viewport that is panned by a fraction of its size or zoomed in or
+     * out by a factor of two at each request, staying within the root tile.
+     */
+    private static class Session {
+        final String client;
+        double ullon, ullat, width, height;
+
+        Session(String client, Random random) {
+            this.client = client;
+            this.width = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / 8;
+            this.height = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / 8;
+            this.ullon = MapServer.ROOT_ULLON
+                    + random.nextDouble() * (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON - width);
+            this.ullat = MapServer.ROOT_LRLAT + height
+                    + random.nextDouble() * (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT - height);
+        }
+
+        synchronized Line next(Random random) {
+            double move = random.nextDouble();
+            if (move < 0.15 && width > (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / 256) {
+                ullon += width / 4;
+                ullat -= height / 4;
+                width /= 2;
+                height /= 2;
+            } else if (move < 0.3 && width < (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / 2) {
+                ullon -= width / 2;
+                ullat += height / 2;
+                width *= 2;
+                height *= 2;
+            } else {
+                ullon += (random.nextDouble() - 0.5) * width;
+                ullat += (random.nextDouble() - 0.5) * height;
+            }
+            ullon = Math.max(MapServer.ROOT_ULLON,
+                    Math.min(ullon, MapServer.ROOT_LRLON - width));
+            ullat = Math.min(MapServer.ROOT_ULLAT,
+                    Math.max(ullat, MapServer.ROOT_LRLAT + height));
+
+            StringBuilder path = new StringBuilder("/raster?client=").append(client)
+                    .append("&ullon=").append(ullon).append("&ullat=").append(ullat)
+                    .append("&lrlon=").append(ullon + width)
+                    .append("&lrlat=").append(ullat - height)
+                    .append("&w=1024&h=768");
+            if (random.nextDouble() < 0.2) {
+                path.append("&start_lon=").append(ullon + random.nextDouble() * width)
+                        .append("&start_lat=").append(ullat - random.nextDouble() * height)
+                        .append("&end_lon=").append(ullon + random.nextDouble() * width)
+                        .append("&end_lat=").append(ullat - random.nextDouble() * height);
+            }
+            Line line = new Line();
+            line.path = path.toString();
+            return line;
+        }
+    }
+
+    private final String url;
+    private final List<Line> traffic;
+    private final List<Session> sessions;
+    private final Random random;
+    private final AtomicLong sent = new AtomicLong();
+    private final Map<String, Endpoint> endpoints = new ConcurrentSkipListMap<>();
+    private final Histogram gcPauses = new Histogram();
+    /** Requests intended to start before this time are not measured. */
+    private volatile long measureFrom;
+    /** Set when the run ends, just before the report; outcomes are no longer recorded. */
+    private volatile boolean stopped;
+
+    LoadGenerator(String url, List<Line> traffic, int sessionCount, long seed) {
+        this.url = url;
+        this.traffic = traffic;
+        this.random = new Random(seed);
+        this.sessions = new ArrayList<>(sessionCount);
+        for (int i = 0; i < sessionCount; i++) {
+            sessions.add(new Session("session-" + i, random));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown argument " + arg);
+            }
+            int eq = arg.indexOf('=');
+            options.put(eq < 0 ? arg.substring(2) : arg.substring(2, eq),
+                    eq < 0 ? "true" : arg.substring(eq + 1));
+        }
+        String url = options.getOrDefault("url", "http://localhost:4567");
+        if (options.containsKey("in-process")) {
+            MapServer.main(new String[0]);
+            awaitServer(url);
+        }
+        List<Line> traffic = options.containsKey("traffic")
+                ? readTraffic(options.get("traffic")) : null;
+        LoadGenerator generator = new LoadGenerator(url, traffic,
+                Integer.parseInt(options.getOrDefault("sessions", "16")),
+                Long.parseLong(options.getOrDefault("seed", "42")));
+        generator.run(Integer.parseInt(options.getOrDefault("concurrency", "8")),
+                Double.parseDouble(options.getOrDefault("rate", "0")),
+                Long.parseLong(options.getOrDefault("warmup", "10")),
+                Long.parseLong(options.getOrDefault("duration", "30")));
+        System.exit(0);
+    }
+
+    /** Reads a traffic file of one Json {@link Line} per line; blank lines are skipped. */
+    static List<Line> readTraffic(String path) throws IOException {
+        Gson gson = new Gson();
+        List<Line> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(path), StandardCharsets.UTF_8))) {
+            for (String s = in.readLine(); s != null; s = in.readLine()) {
+                if (!s.trim().isEmpty()) {
+                    Line line = gson.fromJson(s, Line.class);
+                    if (line == null || line.path == null || !line.path.startsWith("/")) {
+                        throw new IOException("Bad traffic line: " + s);
+                    }
+                    lines.add(line);
+                }
+            }
+        }
+        if (lines.isEmpty()) {
+            throw new IOException("No requests in " + path);
+        }
+        return lines;
+    }
+
+    /** Waits for up to a minute for the server at url to answer. */
+    private static void awaitServer(String url) throws InterruptedException, IOException {
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+        while (true) {
+            try {
+                HttpURLConnection c = (HttpURLConnection) new URL(url + "/metrics")
+                        .openConnection();
+                c.getResponseCode();
+                c.disconnect();
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * Loads the server for warmup seconds, then for duration seconds during which every
+     * request is measured, and prints the report.
+     * @param rate Arrivals per second, or 0 for a closed loop.
+     */
+    void run(int concurrency, double rate, long warmup, long duration)
+            throws InterruptedException {
+        watchGc();
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(duration);
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "load");
+            t.setDaemon(true);
+            return t;
+        });
+        if (rate > 0) {
+            /* Exponential gaps between arrivals, each request scheduled for its own instant. */
+            long arrival = start;
+            while (arrival < end) {
+                long intended = arrival;
+                long wait = intended - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                Line line = nextLine();
+                workers.execute(() -> {
+                    if (System.nanoTime() < end) {
+                        send(line, intended);
+                    } else if (intended >= measureFrom && !stopped) {
+                        endpoint(line).dropped.increment();
+                    }
+                });
+                arrival += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+            }
+        } else {
+            for (int i = 0; i < concurrency; i++) {
+                workers.execute(() -> {
+                    while (System.nanoTime() < end) {
+                        send(nextLine(), System.nanoTime());
+                    }
+                });
+            }
+        }
+        /* Requests in flight at the end are waited for, but only for so long: the report must
+         * not change while it is printed. */
+        workers.shutdown();
+        if (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+            workers.shutdownNow();
+        }
+        stopped = true;
+        report(concurrency, rate, (end - measureFrom) / 1e9);
+    }
+
+    private Line nextLine() {
+        long n = sent.getAndIncrement();
+        if (traffic != null) {
+            return traffic.get((int) (n % traffic.size()));
+        }
+        return sessions.get((int) (n % sessions.size())).next(random);
+    }
+
+    /** Sends line, timing it from intended, and records its outcome. */
+    private void send(Line line, long intended) {
+        int status;
+        try {
+            HttpURLConnection c = (HttpURLConnection) new URL(url + line.path).openConnection();
+            if (line.body != null) {
+                c.setRequestMethod("POST");
+                c.setDoOutput(true);
+                c.setRequestProperty("Content-Type", "application/json");
+                try (OutputStream out = c.getOutputStream()) {
+                    out.write(line.body.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            status = c.getResponseCode();
+            InputStream in = status < 400 ? c.getInputStream() : c.getErrorStream();
+            if (in != null) {
+                byte[] buffer = new byte[8192];
+                while (in.read(buffer) >= 0) {
+                    // Drained, so that the connection can be kept alive and reused.
+                }
+                in.close();
+            }
+        } catch (IOException e) {
+            status = -1;
+        }
+        if (intended < measureFrom || stopped) {
+            return;
+        }
+        Endpoint endpoint = endpoint(line);
+        endpoint.latency.record(System.nanoTime() - intended);
+        if (status == 503) {
+            endpoint.shed.increment();
+        } else if (status < 200 || status >= 300) {
+            endpoint.errors.increment();
+        }
+    }
+
+    /** Returns the outcomes of the endpoint line is sent to, by path. */
+    private Endpoint endpoint(Line line) {
+        int q = line.path.indexOf('?');
+        return endpoints.computeIfAbsent(q < 0 ? line.path : line.path.substring(0, q),
+                p -> new Endpoint());
+    }
+
+    /** Records the pause of every garbage collection in this JVM from now on. */
+    private void watchGc() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(gc instanceof NotificationEmitter)) {
+                continue;
+            }
+            ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+                        .equals(notification.getType()) && System.nanoTime() >= measureFrom) {
+                    GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+                            .from((CompositeData) notification.getUserData());
+                    gcPauses.record(TimeUnit.MILLISECONDS.toNanos(info.getGcInfo().getDuration()));
+                }
+            }, null, null);
+        }
+    }
+
+    private void report(int concurrency, double rate, double seconds) {
+        System.out.println(String.format("%s, concurrency %d, %s, %.1f s measured",
+                traffic != null ? traffic.size() + " recorded requests"
+                        : sessions.size() + " pan/zoom sessions",
+                concurrency, rate > 0 ? String.format("open loop at %.1f req/s", rate)
+                        : "closed loop", seconds));
+        System.out.println(String.format("%-12s %8s %9s %7s %5s %7s %9s %9s %9s %9s",
+                "endpoint", "requests", "req/s", "errors", "shed", "dropped", "p50 ms", "p99 ms",
+                "p999 ms", "max ms"));
+        for (Map.Entry<String, Endpoint> e : endpoints.entrySet()) {
+            Histogram h = e.getValue().latency;
+            System.out.println(String.format(
+                    "%-12s %8d %9.1f %7d %5d %7d %9.2f %9.2f %9.2f %9.2f",
+                    e.getKey(), h.count(), h.count() / seconds, e.getValue().errors.sum(),
+                    e.getValue().shed.sum(), e.getValue().dropped.sum(),
+                    h.quantile(0.5) / NANOS_PER_MILLI,
+                    h.quantile(0.99) / NANOS_PER_MILLI, h.quantile(0.999) / NANOS_PER_MILLI,
+                    h.max() / NANOS_PER_MILLI));
+        }
+        System.out.println(String.format(
+                "GC pauses of this JVM: %d, total %.0f ms, p99 %.1f ms, max %.1f ms",
+                gcPauses.count(), gcPauses.sum() / NANOS_PER_MILLI,
+                gcPauses.quantile(0.99) / NANOS_PER_MILLI, gcPauses.max() / NANOS_PER_MILLI));
+    }
+}
@@ -1,23 +1,30 @@
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
-import org.xml.sax.helpers.LocatorImpl;
-
-import java.awt.geom.Point2D;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
 
 /**
- *  Parses OSM XML files using an XML SAX parser. Used to construct the graph of roads for
+ *  Parses OSM XML files using a StAX streaming parser. Used to construct the graph of roads for
  *  pathfinding, under some constraints.
+ *  The file is read twice: the first pass only looks at ways, keeping the allowed ones and
+ *  reserving a slot in a primitive {@link NodeTable} for every node they refer to; the second
+ *  pass only looks at nodes, and records coordinates for the reserved ones. Nodes that are not
+ *  part of the road network are never materialized.
  *  See OSM documentation on
  *  <a href="http://wiki.openstreetmap.org/wiki/Key:highway">the highway tag</a>,
  *  <a href="http://wiki.openstreetmap.org/wiki/Way">the way XML element</a>,
  *  <a href="http://wiki.openstreetmap.org/wiki/Node">the node XML element</a>,
  *  and the java
- *  <a href="https://docs.oracle.com/javase/tutorial/jaxp/sax/parsing.html">SAX parser tutorial</a>.
+ *  <a href="https://docs.oracle.com/javase/tutorial/jaxp/stax/index.html">StAX tutorial</a>.
  *  @author Alan Yao
  */
-public class MapDBHandler extends DefaultHandler {
+public class MapDBHandler {
     /**
      * Only allow for non-service roads; this prevents going on pedestrian streets as much as
      * possible. Note that in Berkeley, many of the campus roads are tagged as motor vehicle
@@ -29,116 +36,203 @@ public class MapDBHandler extends DefaultHandler {
                     "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
                     "secondary_link", "tertiary_link"));
     private final GraphDB g;
-    private String activeState = "";
+    private final XMLInputFactory factory;
 
-    //Used at startElement/
-    private ArrayList<GraphNode> referredNodes;
+    //Used while reading ways.
+    private long[] referredNodes;
+    private int referredCount;
     private String wayName;
-    private Long wayId;
-    private GraphNode lastNode;
-
-
+    private String wayHighway;
+    private long wayId;
 
-    //Used at endElement.
+    private final NodeTable table;
+    private ArrayList<WayRecord> ways;
+    private HashSet<Long> wayIds;
     private ArrayList<Connection> berkeleyConnections;
+    private RoadGraph graph;
     private HashMap<Long, GraphNode> berkeleyNodes;
 
     public MapDBHandler(GraphDB g) {
         this.g = g;
-        wayName = null;
-        lastNode = null;
-        referredNodes = new ArrayList<>();
+        factory = XMLInputFactory.newInstance();
+        referredNodes = new long[64];
+        table = new NodeTable();
+        ways = new ArrayList<>();
+        wayIds = new HashSet<>();
         berkeleyConnections = new ArrayList<>();
         berkeleyNodes = new HashMap<>();
+    }
 
+    /**
+     * Reads the OSM file at inputFile, then builds the road graph from what was kept.
+     * @param inputFile OSM XML file.
+     * @throws IOException If the file cannot be read.
+     * @throws XMLStreamException If the file is not well-formed XML.
+     */
+    public void parse(File inputFile) throws IOException, XMLStreamException {
+        readWays(inputFile);
+        readNodes(inputFile);
+        buildGraph();
     }
 
     /**
-     * Called at the beginning of an element. Typically, you will want to handle each element in
-     * here, and you may want to track the parent element.
-     * @param uri The Namespace URI, or the empty string if the element has no Namespace URI or
-     *            if Namespace processing is not being performed.
-     * @param localName The local name (without prefix), or the empty string if Namespace
-     *                  processing is not being performed.
-     * @param qName The qualified name (with prefix), or the empty string if qualified names are
-     *              not available. This tells us which element we're looking at.
-     * @param attributes The attributes attached to the element. If there are no attributes, it
-     *                   shall be an empty Attributes object.
-     * @throws SAXException Any SAX exception, possibly wrapping another exception.
-     * @see Attributes
+     * First pass: collect allowed ways and reserve the nodes they refer to. May be called for
+     * several extracts before any call to readNodes; a way present in more than one extract
+     * is only kept once.
      */
-    @Override
-    public void startElement(String uri, String localName, String qName, Attributes attributes)
-            throws SAXException {
-
-        //Node construction begins.
-        if (qName.equals("node")) {
-            activeState = "node";
-            GraphNode gN = new GraphNode(Long.parseLong(attributes.getValue("id")), Double.parseDouble(attributes.getValue("lon")),
-                    Double.parseDouble(attributes.getValue("lat")));
-            berkeleyNodes.put(Long.parseLong(attributes.getValue("id")), gN);
-            lastNode = gN;
+    void readWays(File inputFile) throws IOException, XMLStreamException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(inputFile))) {
+            XMLStreamReader r = factory.createXMLStreamReader(in);
+            boolean inWay = false;
+            while (r.hasNext()) {
+                int event = r.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String qName = r.getLocalName();
+                    //Way Construction begins.
+                    if (qName.equals("way")) {
+                        inWay = true;
+                        wayId = Long.parseLong(r.getAttributeValue(null, "id"));
+                    } else if (!inWay) {
+                        continue;
+                    } else if (qName.equals("nd")) {
+                        // Fetch Nodes to be connected in way.
+                        addReferredNode(Long.parseLong(r.getAttributeValue(null, "ref")));
+                    } else if (qName.equals("tag")) {
+                        String k = r.getAttributeValue(null, "k");
+                        if (k.equals("name")) {
+                            //Way has name.
+                            wayName = r.getAttributeValue(null, "v");
+                        } else if (k.equals("highway")) {
+                            wayHighway = r.getAttributeValue(null, "v");
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT
+                        && r.getLocalName().equals("way")) {
+                    // All tags are known now; see if way is allowed.
+                    if (wayHighway != null && ALLOWED_HIGHWAY_TYPES.contains(wayHighway)
+                            && referredCount > 1 && wayIds.add(wayId)) {
+                        addWay();
+                    }
+                    inWay = false;
+                    wayName = null;
+                    wayHighway = null;
+                    referredCount = 0;
+                }
+            }
+            r.close();
         }
+    }
 
-        //Way Construction begins.
-        else if (qName.equals("way")) {
-            activeState = "way";
-            wayId = Long.parseLong(attributes.getValue("id"));
+    /**
+     * Second pass: record coordinates (and names) of the nodes reserved by the first pass.
+     * Boundary nodes shared between extracts end up in the same NodeTable slot.
+     */
+    void readNodes(File inputFile) throws IOException, XMLStreamException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(inputFile))) {
+            XMLStreamReader r = factory.createXMLStreamReader(in);
+            int lastNode = -1;
+            while (r.hasNext()) {
+                int event = r.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String qName = r.getLocalName();
+                    //Node construction begins.
+                    if (qName.equals("node")) {
+                        lastNode = table.indexOf(Long.parseLong(r.getAttributeValue(null, "id")));
+                        if (lastNode >= 0) {
+                            table.setLocation(lastNode,
+                                    Double.parseDouble(r.getAttributeValue(null, "lon")),
+                                    Double.parseDouble(r.getAttributeValue(null, "lat")));
+                        }
+                    } else if (qName.equals("tag") && lastNode >= 0
+                            && r.getAttributeValue(null, "k").equals("name")) {
+                        //Node has name.
+                        table.setName(lastNode, cleanString(r.getAttributeValue(null, "v")));
+                    } else if (qName.equals("way")) {
+                        // Nodes always precede ways in OSM files.
+                        break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT
+                        && r.getLocalName().equals("node")) {
+                    lastNode = -1;
+                }
+            }
+            r.close();
         }
+    }
 
-        //Node has name.
-        else if (activeState.equals("node") && qName.equals("tag")
-                && attributes.getValue("k").equals("name")) {
-            lastNode.setName(cleanString(attributes.getValue("v")));
+    /**
+     * Splits the ways into connections in file order, then hands them to {@link RoadGraph}
+     * for the bulk adjacency build. Running this as one batch after parsing keeps the result
+     * independent of tag order within a way.
+     */
+    void buildGraph() {
+        int[] buffer = new int[64];
+        for (WayRecord way : ways) {
+            long[] refs = way.refs();
+            if (buffer.length < refs.length) {
+                buffer = new int[refs.length];
+            }
+            int count = 0;
+            for (long ref : refs) {
+                int index = table.indexOf(ref);
+                if (table.isLocated(index)) {
+                    buffer[count++] = index;
+                } else {
+                    // Ways crossing the extract boundary refer to nodes outside of it.
+                    addConnection(way, buffer, count);
+                    count = 0;
+                }
+            }
+            addConnection(way, buffer, count);
         }
-
-        //Way has name.
-        else if (activeState.equals("way") && qName.equals("tag")
-                && attributes.getValue("k").equals("name")) {
-            wayName = attributes.getValue("v");
+        graph = RoadGraph.build(table, berkeleyConnections);
+        for (int i = 0; i < graph.size(); i++) {
+            GraphNode gN = graph.node(i);
+            if (gN != null) {
+                berkeleyNodes.put(gN.getId(), gN);
+            }
         }
+    }
 
-        // Fetch Nodes to be connected in way.
-        else if (qName.equals("nd")) {
-            referredNodes.add(berkeleyNodes.get(Long.parseLong(attributes.getValue("ref"))));
+    private void addConnection(WayRecord way, int[] nodes, int count) {
+        if (count > 1) {
+            berkeleyConnections.add(new Connection(way, Arrays.copyOf(nodes, count)));
         }
+    }
 
-        // See if way is allowed.
-        else if ( qName.equals("tag")
-                && attributes.getValue("k").equals("highway")) {
-            if (ALLOWED_HIGHWAY_TYPES.contains(attributes.getValue("v")) && referredNodes.size() > 1) {
-                Connection c = (wayName == null) ? new Connection(wayId, referredNodes)
-                        : new Connection(wayName, wayId, referredNodes);
-                berkeleyConnections.add(c);
-            }
+    private void addReferredNode(long ref) {
+        if (referredCount == referredNodes.length) {
+            referredNodes = Arrays.copyOf(referredNodes, referredCount * 2);
         }
-
-
+        referredNodes[referredCount++] = ref;
     }
 
+    /** Commits the way being read as a WayRecord, reserving its nodes. */
+    private void addWay() {
+        long[] refs = Arrays.copyOf(referredNodes, referredCount);
+        for (long ref : refs) {
+            table.add(ref);
+        }
+        ways.add(new WayRecord(wayId, refs, wayName, wayHighway));
+    }
 
+    /** Number of allowed ways read so far. */
+    int wayCount() {
+        return ways.size();
+    }
 
-    /**
-     * Receive notification of the end of an element. You may want to take specific terminating
-     * actions here, like finalizing vertices or edges found.
-     * @param uri The Namespace URI, or the empty string if the element has no Namespace URI or
-     *            if Namespace processing is not being performed.
-     * @param localName The local name (without prefix), or the empty string if Namespace
-     *                  processing is not being performed.
-     * @param qName The qualified name (with prefix), or the empty string if qualified names are
-     *              not available.
-     * @throws SAXException  Any SAX exception, possibly wrapping another exception.
-     */
-    @Override
-    public void endElement(String uri, String localName, String qName) throws SAXException {
-        if(qName.equals("way")){
-            wayName = null;
-            wayId = null;
-            referredNodes.clear();
-
-        }
+    /** Number of nodes referred to by the allowed ways read so far. */
+    int nodeCount() {
+        return table.size();
+    }
 
+    public RoadGraph graph() {
+        return graph;
+    }
 
+    /** Returns the road connections built from the allowed ways, in file order. */
+    public List<Connection> connections() {
+        return berkeleyConnections;
     }
 
     /**
@@ -158,27 +252,6 @@ public class MapDBHandler extends DefaultHandler {
         }
     }
 
-    public GraphNode findClosest(Double lon, Double lat){
-        Iterator iter = berkeleyNodes.entrySet().iterator();
-        Map.Entry pair = (Map.Entry) iter.next();
-        GraphNode best = (GraphNode) pair.getValue();
-        while (iter.hasNext()){
-            Map.Entry somePair = (Map.Entry) iter.next();
-            GraphNode someNode = (GraphNode) somePair.getValue();
-            if(best.getId().equals(661844282) || someNode.getId().equals(661844282)){
-                System.out.println("Found");
-            }
-            Double bestDist = best.euclidDistance(lon, lat);
-            Double someDist = someNode.euclidDistance(lon, lat);
-            best = Math.min(bestDist, someDist) == someDist ? someNode : best;
-        }
-        return best;
-    }
-
-
-
-
-
     /**
      * Helper to process strings into their "cleaned" form, ignoring punctuation and capitalization.
      * @param s Input string.
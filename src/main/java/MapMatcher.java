@@ -0,0 +1,283 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * Matches a GPS trace to the road graph with a hidden Markov model, after Newson and Krumm,
+ * "Hidden Markov Map Matching Through Noise and Sparseness". The hidden states of a point are
+ * its projections onto the nearby road segments, found with an {@link EdgeIndex}; a state is
+ * likelier the closer it is to the point, and a transition is likelier the closer the road
+ * distance between two states is to the straight-line distance between their points.
+ * <p>
+ *     Points are fed in one at a time and the Viterbi columns are advanced as they come. As
+ *     soon as every surviving path agrees on a prefix, that prefix is final and its nodes are
+ *     handed to the output, and it is dropped from memory; if paths have not agreed after
+ *     MAX_LAG points, the best one is committed. Memory is therefore bounded whatever the
+ *     length of the trace.
+ * </p>
+ * A MapMatcher holds the state of one trace and must only be used by one thread.
+ */
+public class MapMatcher {
+    /** Standard deviation of GPS noise, in meters. */
+    private static final double SIGMA = 10;
+    /** Scale of the exponential distribution of route vs straight-line distance, in meters. */
+    private static final double BETA = 5;
+    /** Candidates are searched for within this many meters of a point. */
+    private static final double RADIUS = 50;
+    private static final int MAX_CANDIDATES = 8;
+    /** Points held back at most before the best path so far is committed. */
+    private static final int MAX_LAG = 64;
+
+    private static class State {
+        final EdgeSnap snap;
+        final double score;
+        State prev;
+
+        State(EdgeSnap snap, double score, State prev) {
+            this.snap = snap;
+            this.score = score;
+            this.prev = prev;
+        }
+    }
+
+    private final RoadGraph graph;
+    private final EdgeIndex index;
+    private final LongConsumer out;
+    private final double[] meters;
+
+    private List<State> column = new ArrayList<>();
+    private State emitted;
+    private long lastId = -1;
+    private boolean hasLast;
+    private double lastLon, lastLat, lastTime;
+    private int lag;
+
+    /**
+     * @param graph Road graph.
+     * @param index Segment index over graph.
+     * @param out Receives the ids of the matched nodes, in order, as they become final.
+     */
+    public MapMatcher(RoadGraph graph, EdgeIndex index, LongConsumer out) {
+        this.graph = graph;
+        this.index = index;
+        this.out = out;
+        this.meters = graph.weights(RouteProfile.DISTANCE);
+    }
+
+    /**
+     * Adds the next point of the trace. Points out of time order, points too close to the
+     * previous one to carry information, and points with no road nearby are ignored.
+     * @param lon Longitude of the point.
+     * @param lat Latitude of the point.
+     * @param time Timestamp of the point, in any increasing unit.
+     */
+    public void add(double lon, double lat, double time) {
+        double gc = 0;
+        if (hasLast) {
+            gc = Geo.distance(lastLon, lastLat, lon, lat);
+            if (time < lastTime || gc < 2 * SIGMA) {
+                return;
+            }
+        }
+        List<EdgeSnap> candidates = index.candidates(lon, lat, RADIUS, MAX_CANDIDATES);
+        if (candidates.isEmpty()) {
+            return;
+        }
+        hasLast = true;
+        lastLon = lon;
+        lastLat = lat;
+        lastTime = time;
+
+        List<State> next = column.isEmpty() ? null : advance(candidates, gc);
+        if (next == null) {
+            // First point, or no candidate is reachable from the last ones: start over.
+            commit(best());
+            next = new ArrayList<>();
+            for (EdgeSnap c : candidates) {
+                next.add(new State(c, emission(c), null));
+            }
+        }
+        column = next;
+        lag++;
+        converge();
+        if (lag > MAX_LAG) {
+            State best = best();
+            commit(best);
+            column = new ArrayList<>();
+            column.add(best);
+        }
+    }
+
+    /** Commits the best path of what is left of the trace. */
+    public void finish() {
+        commit(best());
+        column = new ArrayList<>();
+    }
+
+    /** Computes the next Viterbi column, or null if no candidate can be reached. */
+    private List<State> advance(List<EdgeSnap> candidates, double gc) {
+        double limit = 2 * gc + 4 * RADIUS;
+        State[] bestPrev = new State[candidates.size()];
+        double[] bestScore = new double[candidates.size()];
+        Arrays.fill(bestScore, Double.NEGATIVE_INFINITY);
+        double[] dr = new double[candidates.size()];
+        for (State a : column) {
+            distances(a.snap, candidates, limit, dr);
+            for (int j = 0; j < candidates.size(); j++) {
+                if (dr[j] == Double.POSITIVE_INFINITY) {
+                    continue;
+                }
+                double score = a.score - Math.abs(dr[j] - gc) / BETA;
+                if (score > bestScore[j]) {
+                    bestScore[j] = score;
+                    bestPrev[j] = a;
+                }
+            }
+        }
+        List<State> next = new ArrayList<>();
+        for (int j = 0; j < candidates.size(); j++) {
+            if (bestPrev[j] != null) {
+                EdgeSnap c = candidates.get(j);
+                next.add(new State(c, bestScore[j] + emission(c), bestPrev[j]));
+            }
+        }
+        return next.isEmpty() ? null : next;
+    }
+
+    private static double emission(EdgeSnap c) {
+        double z = c.distance / SIGMA;
+        return -0.5 * z * z;
+    }
+
+    /** Fills dr[j] with the road distance from a to candidates[j], or infinity past limit. */
+    private void distances(EdgeSnap a, List<EdgeSnap> candidates, double limit, double[] dr) {
+        SearchWorkspace ws = SearchWorkspace.acquire(graph);
+        try {
+            search(a, limit, -1, -1, ws);
+            for (int j = 0; j < candidates.size(); j++) {
+                EdgeSnap b = candidates.get(j);
+                double d = Math.min(ws.dist[b.u] + b.offsetTo(b.u),
+                        ws.dist[b.v] + b.offsetTo(b.v));
+                if (b.segment == a.segment) {
+                    d = Math.min(d, Math.abs(b.t - a.t) * a.length);
+                }
+                dr[j] = d <= limit ? d : Double.POSITIVE_INFINITY;
+            }
+        } finally {
+            ws.release();
+        }
+    }
+
+    /**
+     * Dijkstra in meters from the snapped point a, up to limit or until both targetU and
+     * targetV are settled.
+     */
+    private void search(EdgeSnap a, double limit, int targetU, int targetV,
+                        SearchWorkspace ws) {
+        ws.visit(a.u, a.offsetTo(a.u), SearchWorkspace.NONE);
+        ws.fringe.push(a.offsetTo(a.u), a.u);
+        if (a.offsetTo(a.v) < ws.dist[a.v]) {
+            ws.visit(a.v, a.offsetTo(a.v), SearchWorkspace.NONE);
+            ws.fringe.push(a.offsetTo(a.v), a.v);
+        }
+        while (!ws.fringe.isEmpty() && ws.fringe.peekKey() <= limit) {
+            int current = ws.fringe.poll();
+            if (ws.settled[current]) {
+                continue;
+            }
+            ws.settled[current] = true;
+            if ((current == targetU || current == targetV)
+                    && ws.settled[targetU] && ws.settled[targetV]) {
+                return;
+            }
+            for (int e = graph.firstEdge(current); e < graph.lastEdge(current); e++) {
+                int neighbor = graph.target(e);
+                double cost = ws.dist[current] + meters[e];
+                if (cost < ws.dist[neighbor]) {
+                    ws.visit(neighbor, cost, current);
+                    ws.fringe.push(cost, neighbor);
+                }
+            }
+        }
+    }
+
+    private State best() {
+        State best = null;
+        for (State s : column) {
+            if (best == null || s.score > best.score) {
+                best = s;
+            }
+        }
+        return best;
+    }
+
+    /** Commits the prefix shared by every path of the current column, if there is one. */
+    private void converge() {
+        State[] heads = column.toArray(new State[column.size()]);
+        int steps = 0;
+        while (heads[0] != null) {
+            boolean agree = true;
+            for (State h : heads) {
+                agree &= (h == heads[0]);
+            }
+            if (agree) {
+                commit(heads[0]);
+                lag = steps;
+                return;
+            }
+            for (int i = 0; i < heads.length; i++) {
+                heads[i] = heads[i].prev;
+            }
+            steps++;
+        }
+    }
+
+    /** Outputs the nodes of the path from the last committed state to s, then forgets it. */
+    private void commit(State s) {
+        if (s == null) {
+            return;
+        }
+        List<State> chain = new ArrayList<>();
+        for (State c = s; c != null && c != emitted; c = c.prev) {
+            chain.add(c);
+        }
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            State c = chain.get(i);
+            if (emitted != null && c.prev == emitted) {
+                for (int n : connect(emitted.snap, c.snap)) {
+                    output(n);
+                }
+            } else {
+                // Start of the trace, or of a new piece after a break.
+                output(c.snap.t < 0.5 ? c.snap.u : c.snap.v);
+            }
+            emitted = c;
+        }
+        s.prev = null;
+    }
+
+    /** Nodes on the shortest road path from a to b. */
+    private int[] connect(EdgeSnap a, EdgeSnap b) {
+        if (a.segment == b.segment) {
+            return new int[0];
+        }
+        SearchWorkspace ws = SearchWorkspace.acquire(graph);
+        try {
+            search(a, Double.POSITIVE_INFINITY, b.u, b.v, ws);
+            int end = ws.dist[b.u] + b.offsetTo(b.u) <= ws.dist[b.v] + b.offsetTo(b.v)
+                    ? b.u : b.v;
+            return ws.dist[end] == Double.POSITIVE_INFINITY ? new int[0] : ws.path(end);
+        } finally {
+            ws.release();
+        }
+    }
+
+    private void output(int node) {
+        long id = graph.table().id(node);
+        if (id != lastId) {
+            out.accept(id);
+            lastId = id;
+        }
+    }
+}
@@ -1,21 +1,35 @@
 import java.awt.*;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
+import java.awt.image.DataBufferInt;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /* Maven is used to pull in these dependencies. */
 import com.google.gson.Gson;
-import sun.awt.image.ImageWatched;
+import com.google.gson.stream.JsonReader;
 
 import javax.imageio.ImageIO;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.stream.MemoryCacheImageOutputStream;
 
+import spark.Route;
+
 import static spark.Spark.*;
 
 /**
@@ -27,7 +41,8 @@ import static spark.Spark.*;
 public class MapServer {
     /**
      * The root upper left/lower right longitudes and latitudes represent the bounding box of
-     * the root tile, as the images in the img/ folder are scraped.
+     * the root tile, as the images in the img/ folder are scraped. These describe the default
+     * region, used when there is no region config file (see {@link Region}).
      * Longitude == x-axis; latitude == y-axis.
      */
     public static final double ROOT_ULLAT = 37.892195547244356, ROOT_ULLON = -122.2998046875,
@@ -36,20 +51,49 @@ public class MapServer {
     public static final int TILE_SIZE = 256;
     /** HTTP failed response. */
     private static final int HALT_RESPONSE = 403;
+    /** HTTP status of requests the server is too busy to answer in time. */
+    private static final int SERVICE_UNAVAILABLE = 503;
+    /** Longest time a raster request waits for its raster, in milliseconds. */
+    private static final long RASTER_TIMEOUT_MS = 10000;
     /** Route stroke information: typically roads are not more than 5px wide. */
     public static final float ROUTE_STROKE_WIDTH_PX = 5.0f;
     /** Route stroke information: Cyan with half transparency. */
     public static final Color ROUTE_STROKE_COLOR = new Color(108, 181, 230, 200);
-    /** The tile images are in the IMG_ROOT folder. */
-    private static final String IMG_ROOT = "img/";
-    private static HashMap<Integer, BufferedImage> imgSeen = new HashMap<>();
+    /** The tile images of the default region are in the IMG_ROOT folder. */
+    static final String IMG_ROOT = "img/";
+    /**
+     * Cache of decoded tiles. Their format may be overridden with
+     * -Dbearmaps.tileformat=full|rgb565, and they are kept off the heap with
+     * -Dbearmaps.tilecache=offheap.
+     */
+    private static TileCache tileCache = new TileCache(TileCache.DEFAULT_BUDGET,
+            TileFormat.fromParam(System.getProperty("bearmaps.tileformat", "indexed")),
+            "offheap".equals(System.getProperty("bearmaps.tilecache")));
 
 
     /**
      * The OSM XML file path. Downloaded from <a href="http://download.bbbike.org/osm/">here</a>
-     * using custom region selection.
+     * using custom region selection. Used by the default region.
      **/
-    private static final String OSM_DB_PATH = "berkeley.osm";
+    static final String OSM_DB_PATH = "berkeley.osm";
+    /** Region config file; may be overridden with -Dbearmaps.config=path. */
+    private static final String REGION_CONFIG_PATH =
+            System.getProperty("bearmaps.config", "bearmaps.properties");
+    /**
+     * Tile access count file, used to warm the tile cache; see {@link TileWarmer}. Set empty,
+     * with -Dbearmaps.tileaccess=, to neither warm the cache nor save the counts.
+     */
+    private static final String TILE_ACCESS_PATH =
+            System.getProperty("bearmaps.tileaccess", "tile-access.txt");
+    /**
+     * Depth of the deepest tiles served, set by -Dbearmaps.overzoom; up to
+     * QTreeNode.MAX_OVERZOOM_DEPTH. Past QTreeNode.MAX_DEPTH, the depth of the tiles on disk,
+     * tiles are cropped and scaled up from their ancestor by the server, so that rasters
+     * zoomed in further stay about the size of the viewport. Off by default.
+     */
+    static final int OVERZOOM_DEPTH = Math.max(QTreeNode.MAX_DEPTH,
+            Math.min(QTreeNode.MAX_OVERZOOM_DEPTH,
+                    Integer.getInteger("bearmaps.overzoom", QTreeNode.MAX_DEPTH)));
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -68,8 +112,43 @@ public class MapServer {
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
             "end_lat", "end_lon"};
+    /**
+     * Each isochrone request to the server will have the following parameters
+     * as keys in the params map.<br>
+     * lon -> longitude of the point to search from,<br> lat -> its latitude,<br>
+     * limit -> the maximum cost to reach a node, in the units of the routing profile
+     * (meters unless another profile is asked for).
+     **/
+    private static final String[] REQUIRED_ISOCHRONE_REQUEST_PARAMS = {"lon", "lat", "limit"};
+    /**
+     * Each vector tile request has the depth, column and row of its tile, counted from the
+     * upper left, and may name the index of its region with "region"; the first by default.
+     */
+    private static final String[] REQUIRED_VECTOR_REQUEST_PARAMS = {"depth", "x", "y"};
+    /** Side of the isochrone outline grid cells, in meters, unless the outline is too large. */
+    private static final double ISOCHRONE_CELL_METERS = 100;
+    /**
+     * Largest isochrone limit served under each RouteProfile, indexed by ordinal: half a
+     * degree, 50 km, or an hour of travel.
+     */
+    private static final double[] MAX_ISOCHRONE_LIMIT = {0.5, 50_000, 3600};
+    /** Most sources, and most targets, a single /matrix request may ask for. */
+    private static final int MAX_MATRIX_POINTS = 1000;
+    /** Most cells, sources times targets, a single /matrix request may ask for. */
+    private static final long MAX_MATRIX_CELLS = 100_000;
     /* Define any static variables here. Do not define any instance variables of MapServer. */
     private static GraphDB g;
+    private static List<Region> regions;
+    private static BatchRouter batchRouter;
+    private static RasterPipeline rasterPipeline;
+    private static VectorTiles vectorTiles;
+    /* Admission control: how many requests of each kind run and wait at once, and how long
+     * they may wait. Their total stays well under Jetty's 200 request threads. */
+    private static final Admission RASTER_ADMISSION = new Admission("raster", 32, 32, 2000);
+    private static final Admission SEARCH_ADMISSION = new Admission("search", 16, 32, 250);
+    private static final Admission VECTOR_ADMISSION = new Admission("vector", 16, 64, 250);
+    private static final Admission ROUTING_ADMISSION = new Admission("routing",
+            Runtime.getRuntime().availableProcessors() * 2, 32, 1000);
 
     /**
      * Place any initialization statements that will be run before the server main loop here.
@@ -77,7 +156,14 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        g = new GraphDB(OSM_DB_PATH);
+        regions = Region.load(REGION_CONFIG_PATH);
+        if (!TILE_ACCESS_PATH.isEmpty()) {
+            new TileWarmer(tileCache, regions, TILE_ACCESS_PATH).start();
+        }
+        g = new GraphDB(regions);
+        batchRouter = new BatchRouter(g);
+        rasterPipeline = new RasterPipeline(g, tileCache, regions);
+        vectorTiles = new VectorTiles(g.graph(), g.connections(), VectorTiles.DEFAULT_BUDGET);
     }
 
 
@@ -96,39 +182,72 @@ public class MapServer {
 
         /* Define the raster endpoint for HTTP GET requests. I use anonymous functions to define
          * the request handlers. */
-        get("/raster", (req, res) -> {
+        get("/raster", admit(RASTER_ADMISSION, (req, res) -> {
             HashMap<String, Double> rasterParams =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
             /* Required to have valid raster params */
             validateRequestParameters(rasterParams, REQUIRED_RASTER_REQUEST_PARAMS);
-            /* Create the Map for return parameters. */
-            Map<String, Object> rasteredImgParams = new HashMap<>();
-            /* getMapRaster() does almost all the work for this API call */
-            BufferedImage im = getMapRaster(rasterParams, rasteredImgParams);
             /* Check if we have routing parameters. */
             HashMap<String, Double> routeParams =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            /* If we do, draw the route too. */
-            if (hasRequestParameters(routeParams, REQUIRED_ROUTE_REQUEST_PARAMS)) {
-                findAndDrawRoute(routeParams, rasteredImgParams, im);
-            }
-            /* On an image query success, add the image data to the response */
-            if (rasteredImgParams.containsKey("query_success")
-                    && (Boolean) rasteredImgParams.get("query_success")) {
-                ByteArrayOutputStream os = new ByteArrayOutputStream();
-                writeJpgToStream(im, os);
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
-                rasteredImgParams.put("b64_encoded_image_data", encodedImage);
-                os.flush();
-                os.close();
+            if (!hasRequestParameters(routeParams, REQUIRED_ROUTE_REQUEST_PARAMS)) {
+                routeParams = null;
+            } else {
+                validateFiniteParameters(routeParams);
             }
+            /* The raster is built and encoded by the pipeline, off this request thread. A newer
+             * request from the same client cancels this one. Under congestion, a raster one
+             * level shallower is served, which takes a quarter of the tiles. With "crop", the
+             * raster is cut down to the viewport. */
+            RasterPipeline.Job job = rasterPipeline.submit(req.queryParams("client"),
+                    rasterParams, routeParams, getRouteProfile(req), snapToEdge(req),
+                    flag(req, "crop"), RASTER_ADMISSION.congested());
+            Map<String, Object> rasteredImgParams = awaitRaster(job);
             /* Encode response to Json */
+            long start = System.nanoTime();
             Gson gson = new Gson();
-            return gson.toJson(rasteredImgParams);
-        });
+            String json = gson.toJson(rasteredImgParams);
+            Metrics.JSON.record(System.nanoTime() - start);
+            return json;
+        }));
+
+        /* Define the route-only endpoint: the route as Json, without any rastering. */
+        get("/route", admit(ROUTING_ADMISSION, (req, res) -> {
+            HashMap<String, Double> routeParams =
+                    getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
+            validateRequestParameters(routeParams, REQUIRED_ROUTE_REQUEST_PARAMS);
+            validateFiniteParameters(routeParams);
+            Map<String, Object> route = getRoute(routeParams, getRouteProfile(req),
+                    snapToEdge(req), flag(req, "polyline"));
+            Gson gson = new Gson();
+            return gson.toJson(route);
+        }));
+
+        /* Define the isochrone endpoint: everything reachable within a cost limit. */
+        get("/isochrone", admit(ROUTING_ADMISSION, (req, res) -> {
+            HashMap<String, Double> isoParams =
+                    getRequestParams(req, REQUIRED_ISOCHRONE_REQUEST_PARAMS);
+            validateRequestParameters(isoParams, REQUIRED_ISOCHRONE_REQUEST_PARAMS);
+            RouteProfile profile = req.queryParams("profile") == null
+                    ? RouteProfile.DISTANCE : getRouteProfile(req);
+            Gson gson = new Gson();
+            return gson.toJson(getIsochrone(isoParams, profile));
+        }));
+
+        /* Define the vector tile endpoint: the roads of one tile as Json, for the client to
+         * draw. Tiles never change while the server runs, so clients may cache them. */
+        get("/vector", admit(VECTOR_ADMISSION, (req, res) -> {
+            HashMap<String, Double> tileParams =
+                    getRequestParams(req, REQUIRED_VECTOR_REQUEST_PARAMS);
+            validateRequestParameters(tileParams, REQUIRED_VECTOR_REQUEST_PARAMS);
+            QTreeNode tile = getVectorTile(tileParams, req.queryParams("region"));
+            res.type("application/json");
+            res.header("Cache-Control", "public, max-age=3600");
+            return vectorTiles.json(tile);
+        }));
 
         /* Define the API endpoint for search */
-        get("/search", (req, res) -> {
+        get("/search", admit(SEARCH_ADMISSION, (req, res) -> {
             Set<String> reqParams = req.queryParams();
             String term = req.queryParams("term");
             Gson gson = new Gson();
@@ -141,6 +260,58 @@ public class MapServer {
                 List<String> matches = getLocationsByPrefix(term);
                 return gson.toJson(matches);
             }
+        }));
+
+        /* Define the many-to-many travel cost endpoint. The body is Json of the form
+         * {"sources": [[lon, lat], ...], "targets": [[lon, lat], ...], "profile": "time"}. */
+        post("/matrix", admit(ROUTING_ADMISSION, (req, res) -> {
+            Gson gson = new Gson();
+            MatrixQuery query = gson.fromJson(req.body(), MatrixQuery.class);
+            if (query == null || query.sources == null || query.targets == null) {
+                halt(HALT_RESPONSE, "Request failed - sources and targets required.");
+            }
+            RouteProfile profile;
+            try {
+                profile = RouteProfile.fromParam(query.profile);
+            } catch (IllegalArgumentException e) {
+                halt(HALT_RESPONSE, "Incorrect parameters - unknown routing profile.");
+                return null;
+            }
+            return gson.toJson(getDistanceMatrix(query.sources, query.targets, profile));
+        }));
+
+        /* Define the batch route endpoint. The body is a Json array of route queries, each with
+         * the REQUIRED_ROUTE_REQUEST_PARAMS; results are streamed back as Json lines. */
+        post("/routes", admit(ROUTING_ADMISSION, (req, res) -> {
+            RouteProfile profile = getRouteProfile(req);
+            res.type("application/x-ndjson");
+            Writer out = new OutputStreamWriter(res.raw().getOutputStream(),
+                    StandardCharsets.UTF_8);
+            batchRouter.run(new InputStreamReader(req.raw().getInputStream(),
+                    StandardCharsets.UTF_8), profile, out);
+            out.flush();
+            return "";
+        }));
+
+        /* Define the map matching endpoint. The body is a Json array of GPS points
+         * {"lon": .., "lat": .., "time": ..} in trace order; the response is the Json array of
+         * the ids of the matched road nodes, streamed as the match becomes final. */
+        post("/match", admit(ROUTING_ADMISSION, (req, res) -> {
+            res.type("application/json");
+            Writer out = new OutputStreamWriter(res.raw().getOutputStream(),
+                    StandardCharsets.UTF_8);
+            matchTrace(new InputStreamReader(req.raw().getInputStream(),
+                    StandardCharsets.UTF_8), out);
+            out.flush();
+            return "";
+        }));
+
+        /* Define the metrics endpoint, in the Prometheus text format. */
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4");
+            StringWriter out = new StringWriter();
+            Metrics.write(out);
+            return out.toString();
         });
 
         /* Define map application redirect */
@@ -172,6 +343,18 @@ public class MapServer {
         }
     }
 
+    /**
+     * Validate that every computed parameter is a finite number. If one is NaN or infinite,
+     * halt.
+     */
+    private static void validateFiniteParameters(HashMap<String, Double> params) {
+        for (double value : params.values()) {
+            if (!Double.isFinite(value)) {
+                halt(HALT_RESPONSE, "Incorrect parameters - provide finite numbers.");
+            }
+        }
+    }
+
     /**
      * Return a parameter map of the required request parameters.
      * Requires that all input parameters are doubles.
@@ -188,7 +371,6 @@ public class MapServer {
                 try {
                     params.put(param, Double.parseDouble(req.queryParams(param)));
                 } catch (NumberFormatException e) {
-                    e.printStackTrace();
                     halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
                 }
             }
@@ -196,6 +378,116 @@ public class MapServer {
         return params;
     }
 
+    /**
+     * Return the tile named by vector tile request params, in the region of the given index,
+     * or the first region if it is null. Halts if there is no such tile.
+     */
+    private static QTreeNode getVectorTile(HashMap<String, Double> params, String region) {
+        double depth = params.get("depth");
+        double x = params.get("x");
+        double y = params.get("y");
+        int index = 0;
+        try {
+            index = region == null ? 0 : Integer.parseInt(region);
+        } catch (NumberFormatException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - region must be an index.");
+        }
+        if (depth != Math.rint(depth) || x != Math.rint(x) || y != Math.rint(y)
+                || depth < 0 || depth > QTreeNode.MAX_OVERZOOM_DEPTH
+                || index < 0 || index >= regions.size()) {
+            halt(HALT_RESPONSE, "Incorrect parameters - no such tile.");
+        }
+        QTreeNode tile = regions.get(index).tile((int) depth, (int) x, (int) y);
+        if (tile == null) {
+            halt(HALT_RESPONSE, "Incorrect parameters - no such tile.");
+        }
+        return tile;
+    }
+
+    /**
+     * Return the routing profile named by the optional "profile" request parameter
+     * (euclidean, distance or time). Halts if the name is not a known profile.
+     */
+    private static RouteProfile getRouteProfile(spark.Request req) {
+        try {
+            return RouteProfile.fromParam(req.queryParams("profile"));
+        } catch (IllegalArgumentException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - unknown routing profile.");
+            return null;
+        }
+    }
+
+    /**
+     * Wrap route so that it only runs once admitted by admission. A request that is not
+     * admitted is answered SERVICE_UNAVAILABLE, with a Retry-After header.
+     */
+    private static Route admit(Admission admission, Route route) {
+        return (req, res) -> {
+            long start = System.nanoTime();
+            if (!admission.enter()) {
+                res.header("Retry-After", Integer.toString(admission.retryAfterSeconds()));
+                halt(SERVICE_UNAVAILABLE, "Server busy - retry later.");
+            }
+            try {
+                return route.handle(req, res);
+            } finally {
+                admission.exit();
+                Metrics.request(req.pathInfo(), System.nanoTime() - start);
+            }
+        };
+    }
+
+    /**
+     * Wait for a raster job to finish, for at most RASTER_TIMEOUT_MS. A job that was cancelled
+     * by a newer request from its client yields a failed query. Halts with SERVICE_UNAVAILABLE
+     * if the pipeline is full or the job times out, in which case the job is cancelled.
+     */
+    private static Map<String, Object> awaitRaster(RasterPipeline.Job job)
+            throws InterruptedException {
+        try {
+            return job.result().get(RASTER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (CancellationException e) {
+            Map<String, Object> failed = new HashMap<>();
+            failed.put("query_success", false);
+            return failed;
+        } catch (TimeoutException e) {
+            job.cancel();
+            halt(SERVICE_UNAVAILABLE, "Raster timed out.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RejectedExecutionException) {
+                halt(SERVICE_UNAVAILABLE, "Server busy.");
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        return null;
+    }
+
+    /**
+     * Return whether the optional "snap" request parameter asks for the route ends to be
+     * snapped onto the closest road segment ("edge") rather than the closest road node
+     * ("node", the default). Halts if it is neither.
+     */
+    private static boolean snapToEdge(spark.Request req) {
+        String snap = req.queryParams("snap");
+        if (snap == null || snap.equalsIgnoreCase("node")) {
+            return false;
+        }
+        if (!snap.equalsIgnoreCase("edge")) {
+            halt(HALT_RESPONSE, "Incorrect parameters - snap must be node or edge.");
+        }
+        return true;
+    }
+
+    /**
+     * Return whether the optional request parameter name is set: true when it is present,
+     * with or without a value, unless its value is "false" or "0".
+     */
+    private static boolean flag(spark.Request req, String name) {
+        String value = req.queryParams(name);
+        return value != null && !value.trim().equalsIgnoreCase("false")
+                && !value.trim().equals("0");
+    }
+
     /**
      * Write a <code>BufferedImage</code> to an <code>OutputStream</code>. The image is written as
      * a lossy JPG, but with the highest quality possible.
@@ -208,11 +500,15 @@ public class MapServer {
         param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
         param.setCompressionQuality(1.0F); // Highest quality of jpg possible
         writer.setOutput(new MemoryCacheImageOutputStream(os));
+        long start = System.nanoTime();
         try {
             writer.write(im);
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new UncheckedIOException(e);
+        } finally {
+            writer.dispose();
         }
+        Metrics.JPEG_ENCODE.record(System.nanoTime() - start);
     }
 
 
@@ -251,12 +547,42 @@ public class MapServer {
     public static BufferedImage getMapRaster(Map<String, Double> inputParams,
                                              Map<String, Object> rasteredImageParams) {
 
+        List<QTreeNode> tiles = rasterTiles(inputParams, rasteredImageParams);
+        for (QTreeNode n : tiles) {
+            tileCache.load(n);
+        }
+        return composite(tileCache, tiles, (Integer) rasteredImageParams.get("raster_width"),
+                (Integer) rasteredImageParams.get("raster_height"));
+    }
+
+    /**
+     * Chooses the tiles of the raster for inputParams, as described in {@link #getMapRaster},
+     * and fills rasteredImageParams.
+     * @return The tiles, in row-major order.
+     */
+    static List<QTreeNode> rasterTiles(Map<String, Double> inputParams,
+                                       Map<String, Object> rasteredImageParams) {
+        return rasterTiles(regions, inputParams, rasteredImageParams, 0);
+    }
+
+    /**
+     * Same as {@link #rasterTiles(Map, Map)}, but choosing among the tiles of the given
+     * regions, and with tiles the given number of levels shallower than the query calls for.
+     * A raster one level coarser has about a quarter of the tiles, and is marked "degraded"
+     * in rasteredImageParams.
+     */
+    static List<QTreeNode> rasterTiles(List<Region> regions, Map<String, Double> inputParams,
+                                       Map<String, Object> rasteredImageParams, int coarser) {
         QTreeNode query = new QTreeNode(-1, -1, inputParams.get("ullon"), inputParams.get("ullat"),
                 inputParams.get("lrlon"), inputParams.get("lrlat"));
-        Double ldpGoal = (query.lonLR() - query.lonUL()) / inputParams.get("w");
-        ArrayList<QTreeNode> goodResolution = goodRes(query, ldpGoal);
+        Double ldpGoal = (query.lonLR() - query.lonUL()) / inputParams.get("w") * (1 << coarser);
+        Region region = Region.forQuery(regions, query.lonUL(), query.latUL(),
+                query.lonLR(), query.latLR());
+        long start = System.nanoTime();
+        ArrayList<QTreeNode> goodResolution = goodRes(region, query, ldpGoal);
         ArrayList<Object> order = order(goodResolution);
         ArrayList<QTreeNode> orderedTiles = (ArrayList<QTreeNode>) order.remove(0);
+        Metrics.TILE_SELECTION.record(System.nanoTime() - start);
 
         rasteredImageParams.put("depth", orderedTiles.get(0).depth());
         rasteredImageParams.put("raster_ul_lon",
@@ -272,19 +598,31 @@ public class MapServer {
         rasteredImageParams.put("raster_height",
                 (Integer) order.remove(0) * 256);
         rasteredImageParams.put("query_success", true);
+        if (coarser > 0) {
+            rasteredImageParams.put("degraded", true);
+        }
+        return orderedTiles;
+    }
 
-        BufferedImage img = new BufferedImage((Integer) rasteredImageParams.get("raster_width"),
-                (Integer) rasteredImageParams.get("raster_height"),
-                BufferedImage.TYPE_INT_RGB);
+    /**
+     * Draws tiles, in row-major order, into a new width by height raster. Tiles are copied
+     * straight from cache into its pixels when they can be; any other tile is drawn.
+     */
+    static BufferedImage composite(TileCache cache, List<QTreeNode> tiles,
+                                   int width, int height) {
+        long start = System.nanoTime();
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        Graphics2D graphics = null;
         int x = 0;
         int y = 0;
-        for (QTreeNode n: orderedTiles) {
-            if (imgSeen.containsKey(n.id())) {
-                img.createGraphics().drawImage(imgSeen.get(n.id()), x, y, null);
-            } else {
-                n.generateBufferedImage();
-                img.createGraphics().drawImage(n.bi(), x, y, null);
-                imgSeen.put(n.id(), n.bi());
+        for (QTreeNode n : tiles) {
+            BufferedImage tile = cache.blit(n, pixels, width, height, x, y);
+            if (tile != null) {
+                if (graphics == null) {
+                    graphics = img.createGraphics();
+                }
+                graphics.drawImage(tile, x, y, null);
             }
             x += 256;
             if (x >= img.getWidth()) {
@@ -292,9 +630,65 @@ public class MapServer {
                 y += 256;
             }
         }
+        if (graphics != null) {
+            graphics.dispose();
+        }
+        Metrics.COMPOSITE.record(System.nanoTime() - start);
         return img;
     }
 
+    /**
+     * Crops raster im, made for inputParams as described in {@link #getMapRaster}, to the query
+     * box and scales it to the w by h viewport, then updates the bounds and size of the raster
+     * in rasteredImageParams. The encoded raster is then the size of the screen rather than of
+     * the tiles. Where the query box runs off the raster, the result is cut short.
+     * @return The cropped raster, or im itself if the query box misses it.
+     */
+    static BufferedImage cropToViewport(BufferedImage im, Map<String, Double> inputParams,
+                                        Map<String, Object> rasteredImageParams) {
+        long start = System.nanoTime();
+        double ulLon = (Double) rasteredImageParams.get("raster_ul_lon");
+        double ulLat = (Double) rasteredImageParams.get("raster_ul_lat");
+        double lrLon = (Double) rasteredImageParams.get("raster_lr_lon");
+        double lrLat = (Double) rasteredImageParams.get("raster_lr_lat");
+        double pixelsPerLon = im.getWidth() / (lrLon - ulLon);
+        double pixelsPerLat = im.getHeight() / (ulLat - lrLat);
+        double queryX0 = (inputParams.get("ullon") - ulLon) * pixelsPerLon;
+        double queryX1 = (inputParams.get("lrlon") - ulLon) * pixelsPerLon;
+        double queryY0 = (ulLat - inputParams.get("ullat")) * pixelsPerLat;
+        double queryY1 = (ulLat - inputParams.get("lrlat")) * pixelsPerLat;
+        double scaleX = inputParams.get("w") / (queryX1 - queryX0);
+        double scaleY = inputParams.get("h") / (queryY1 - queryY0);
+
+        double x0 = Math.max(0, queryX0);
+        double x1 = Math.min(im.getWidth(), queryX1);
+        double y0 = Math.max(0, queryY0);
+        double y1 = Math.min(im.getHeight(), queryY1);
+        int width = (int) Math.round((x1 - x0) * scaleX);
+        int height = (int) Math.round((y1 - y0) * scaleY);
+        if (!(x1 > x0 && y1 > y0 && scaleX > 0 && scaleY > 0) || width < 1 || height < 1) {
+            return im;
+        }
+
+        BufferedImage cropped = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = cropped.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        AffineTransform transform = AffineTransform.getScaleInstance(scaleX, scaleY);
+        transform.translate(-x0, -y0);
+        graphics.drawImage(im, transform, null);
+        graphics.dispose();
+
+        rasteredImageParams.put("raster_ul_lon", ulLon + x0 / pixelsPerLon);
+        rasteredImageParams.put("raster_ul_lat", ulLat - y0 / pixelsPerLat);
+        rasteredImageParams.put("raster_lr_lon", ulLon + x1 / pixelsPerLon);
+        rasteredImageParams.put("raster_lr_lat", ulLat - y1 / pixelsPerLat);
+        rasteredImageParams.put("raster_width", width);
+        rasteredImageParams.put("raster_height", height);
+        Metrics.CROP.record(System.nanoTime() - start);
+        return cropped;
+    }
+
     /** Orders tiles in tilesToOrder so they are ready to be put in a BufferedImage.**/
     private static ArrayList<Object> order(ArrayList<QTreeNode> tilesToOrder) {
         ArrayList<QTreeNode> orderedTiles = new ArrayList<>();
@@ -333,15 +727,13 @@ public class MapServer {
         return Math.abs(a - b) < 0.0000000001;
     }
 
-    /** Traverses down QTree hierarchy,
+    /** Traverses down the QTree hierarchy of region,
      * returns arrayList of ALL tiles with good enough resolution,
      * that is all tiles with LDP <= queryLDP. **/
-    public static ArrayList<QTreeNode> goodRes(QTreeNode query, Double ldpGoal) {
-        QuadTree world =
-                new QuadTree(
-                        new QTreeNode(0, 0, ROOT_ULLON, ROOT_ULLAT, ROOT_LRLON, ROOT_LRLAT));
+    public static ArrayList<QTreeNode> goodRes(Region region, QTreeNode query, Double ldpGoal) {
+        QuadTree world = new QuadTree(region.root());
         ArrayList<QTreeNode> rtn = new ArrayList<>();
-        world.getRoot().checkLDP(rtn, query, ldpGoal);
+        world.getRoot().checkLDP(rtn, query, ldpGoal, OVERZOOM_DEPTH);
         return rtn;
     }
 
@@ -365,12 +757,32 @@ public class MapServer {
     public static List<Long> findAndDrawRoute(Map<String, Double> routeParams,
                                               Map<String, Object> rasterImageParams,
                                               BufferedImage im) {
+        return findAndDrawRoute(routeParams, RouteProfile.DEFAULT, false, rasterImageParams, im);
+    }
 
+    /**
+     * Same as {@link #findAndDrawRoute(Map, Map, BufferedImage)}, with the edge costs of the
+     * given routing profile instead of the default euclidean distance.
+     * @param snapToEdge Whether to snap the start and end points onto the closest road segment
+     *                   instead of the closest road node. The route is then drawn from and to
+     *                   the snapped points, which are not part of the returned ids.
+     *                   The ids are then also empty when both points snap onto the same
+     *                   segment, since such a route passes through no node. Unlike a missing
+     *                   route it is still drawn; callers that need to tell the two apart use
+     *                   {@link #getRoute}, whose route_success is false only for a missing
+     *                   route.
+     */
+    public static List<Long> findAndDrawRoute(Map<String, Double> routeParams,
+                                              RouteProfile profile, boolean snapToEdge,
+                                              Map<String, Object> rasterImageParams,
+                                              BufferedImage im) {
 
-        GraphNode origin = g.findClosest(routeParams.get("start_lon"), routeParams.get("start_lat"));
-        GraphNode destination = g.findClosest(routeParams.get("end_lon"), routeParams.get("end_lat"));
 
-        LinkedList<GraphNode> route = star(origin, destination);
+        RoutePath route = g.route(routeParams.get("start_lon"), routeParams.get("start_lat"),
+                routeParams.get("end_lon"), routeParams.get("end_lat"), profile, snapToEdge);
+        if (route == null) {
+            return new ArrayList<>();
+        }
 
 
 
@@ -379,133 +791,268 @@ public class MapServer {
 
 
         if (im != null) {
-            Graphics graphics = im.getGraphics();
-            ((Graphics2D) graphics).setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
-                    BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            graphics.setColor(ROUTE_STROKE_COLOR);
-            for(int i = 0; i < route.size() - 1; i++){
-                GraphNode first = route.get(i);
-                GraphNode next = route.get(i+1);
-
-                int x_pos_curr = getXpos(first, rasterImageParams);
-                int y_pos_curr = getYpos(first, rasterImageParams);
-                int x_pos_next = getXpos(next, rasterImageParams);
-                int y_pos_next = getYpos(next, rasterImageParams);
-                graphics.drawLine(x_pos_curr, y_pos_curr, x_pos_next, y_pos_next);
-            }
-            try{
-                File f = new File("test.png");
-                ImageIO.write(im, "PNG", f);
+            drawRoute(route, rasterImageParams, im);
+        }
 
-            } catch (IOException e){
-                System.out.println("FUCK");
 
-            }
-        }
 
+        return route.ids(g.graph().table());
 
 
-        List<Long> routeIDs = new ArrayList<>();
 
-        for(GraphNode g: route){
-            routeIDs.add(g.getId());
-        }
 
-        return routeIDs;
 
 
 
 
+    }
 
+    /** Draws route onto the rastered image im, as described in {@link #findAndDrawRoute}. */
+    static void drawRoute(RoutePath route, Map<String, Object> rasterImageParams,
+                          BufferedImage im) {
+        long start = System.nanoTime();
+        Graphics graphics = im.getGraphics();
+        ((Graphics2D) graphics).setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
+                BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        graphics.setColor(ROUTE_STROKE_COLOR);
+        for(int i = 0; i < route.lons.length - 1; i++){
+            int x_pos_curr = getXpos(route.lons[i], rasterImageParams);
+            int y_pos_curr = getYpos(route.lats[i], rasterImageParams);
+            int x_pos_next = getXpos(route.lons[i + 1], rasterImageParams);
+            int y_pos_next = getYpos(route.lats[i + 1], rasterImageParams);
+            graphics.drawLine(x_pos_curr, y_pos_curr, x_pos_next, y_pos_next);
+        }
+        graphics.dispose();
+        Metrics.OVERLAY.record(System.nanoTime() - start);
+    }
 
+    /**
+     * Searches for the route like {@link #findAndDrawRoute}, but returns it as data for the
+     * client to draw, instead of drawing it onto a raster.
+     * @param routeParams Params collected from the API call. Members are as
+     *                    described in REQUIRED_ROUTE_REQUEST_PARAMS.
+     * @param profile Cost model of the search.
+     * @param snapToEdge Whether to snap the start and end points onto the closest road segment
+     *                   instead of the closest road node.
+     * @param polyline Whether to include the route in encoded polyline format.
+     * @return A map of parameters for the Json response as specified: <br>
+     * "route_success" -> Boolean, whether a route was found. <br>
+     * "route" -> List of the node ids of the route, from start to end. <br>
+     * "coordinates" -> List of the {lon, lat} pairs of the route geometry: those of the nodes,
+     * plus the snapped start and end points when snapping to segments. <br>
+     * "distance" -> Double, the length of the route in meters. <br>
+     * "cost" -> Double, the cost of the route under profile. <br>
+     * "polyline" -> String, the route in Google encoded polyline format, if requested. <br>
+     */
+    public static Map<String, Object> getRoute(Map<String, Double> routeParams,
+                                               RouteProfile profile, boolean snapToEdge,
+                                               boolean polyline) {
+        RoutePath route = g.route(routeParams.get("start_lon"), routeParams.get("start_lat"),
+                routeParams.get("end_lon"), routeParams.get("end_lat"), profile, snapToEdge);
+
+        Map<String, Object> result = new HashMap<>();
+        result.put("route_success", route != null);
+        if (route == null) {
+            return result;
+        }
+        double[][] coordinates = new double[route.lons.length][];
+        for (int i = 0; i < coordinates.length; i++) {
+            coordinates[i] = new double[] {route.lons[i], route.lats[i]};
+        }
+        result.put("route", route.ids(g.graph().table()));
+        result.put("coordinates", coordinates);
+        result.put("distance", route.distance);
+        result.put("cost", route.cost);
+        if (polyline) {
+            result.put("polyline", PolylineEncoder.encode(route.lons, route.lats));
+        }
+        return result;
+    }
 
+    /**
+     * Collects everything reachable within a cost limit from the closest node to a point.
+     * Halts if the limit is not positive or is past the largest served for profile, or if
+     * the point is not finite or has no road node to search from.
+     * @param isoParams Params collected from the API call. Members are as
+     *                  described in REQUIRED_ISOCHRONE_REQUEST_PARAMS.
+     * @param profile Cost model of the search.
+     * @return A map of parameters for the Json response as specified: <br>
+     * "origin_id" -> Number, the id of the node searched from. <br>
+     * "node_ids" -> Array of the ids of the reached nodes, in order of cost. <br>
+     * "costs" -> Array of the cost of reaching each of those nodes. <br>
+     * "polygon" -> List of rings outlining the reached area, each a closed list of
+     * {lon, lat} pairs; outer rings are counterclockwise, holes clockwise. <br>
+     */
+    public static Map<String, Object> getIsochrone(Map<String, Double> isoParams,
+                                                   RouteProfile profile) {
+        double limit = isoParams.get("limit");
+        double maxLimit = MAX_ISOCHRONE_LIMIT[profile.ordinal()];
+        if (!(limit > 0 && limit <= maxLimit)) {
+            halt(HALT_RESPONSE, "Incorrect parameters - limit must be positive and at most "
+                    + maxLimit + " for profile " + profile.name().toLowerCase() + ".");
+        }
+        double lon = isoParams.get("lon");
+        double lat = isoParams.get("lat");
+        GraphNode origin = Double.isFinite(lon) && Double.isFinite(lat)
+                ? g.findClosest(lon, lat) : null;
+        if (origin == null) {
+            halt(HALT_RESPONSE, "Incorrect parameters - no road to search from.");
+        }
+        Isochrone iso = Isochrone.compute(g.graph(), origin.index(), limit, profile,
+                ISOCHRONE_CELL_METERS);
+        Map<String, Object> result = new HashMap<>();
+        result.put("origin_id", origin.getId());
+        result.put("node_ids", nodeIds(iso.nodes));
+        result.put("costs", iso.costs);
+        result.put("polygon", iso.rings);
+        return result;
+    }
 
+    /**
+     * Map-matches the GPS trace read from in, and writes the matched node ids to out as a
+     * Json array. The trace is read and matched point by point, so arbitrarily long traces
+     * are matched in bounded memory.
+     * @param in Json array of {"lon", "lat", "time"} objects.
+     * @param out Where the Json array of matched node ids is written.
+     */
+    public static void matchTrace(Reader in, Writer out) throws IOException {
+        boolean[] first = {true};
+        out.write('[');
+        MapMatcher matcher = new MapMatcher(g.graph(), g.edgeIndex(), id -> {
+            try {
+                if (!first[0]) {
+                    out.write(',');
+                }
+                out.write(Long.toString(id));
+                first[0] = false;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        JsonReader reader = new JsonReader(in);
+        reader.beginArray();
+        while (reader.hasNext()) {
+            double lon = Double.NaN, lat = Double.NaN, time = 0;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "lon":
+                        lon = reader.nextDouble();
+                        break;
+                    case "lat":
+                        lat = reader.nextDouble();
+                        break;
+                    case "time":
+                        time = reader.nextDouble();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (!Double.isNaN(lon) && !Double.isNaN(lat)) {
+                matcher.add(lon, lat, time);
+            }
+        }
+        reader.endArray();
+        matcher.finish();
+        out.write(']');
     }
 
-    private static int getXpos(GraphNode n, Map<String, Object> rasterImageParams){
+    private static int getXpos(double lon, Map<String, Object> rasterImageParams){
         int rast_width = (int) rasterImageParams.get("raster_width");
         Double lr_lon = (Double) rasterImageParams.get("raster_lr_lon");
         Double ul_lon = (Double) rasterImageParams.get("raster_ul_lon");
         Double pixelPerDegree = rast_width / (lr_lon - ul_lon);
-        Double rtn = (n.lon() - ul_lon) * pixelPerDegree;
+        Double rtn = (lon - ul_lon) * pixelPerDegree;
         return rtn.intValue();
     }
 
 
-    private static int getYpos(GraphNode n, Map<String, Object> rasterImageParams){
+    private static int getYpos(double lat, Map<String, Object> rasterImageParams){
         int rast_height = (int) rasterImageParams.get("raster_height");
         Double ul_lat = (Double) rasterImageParams.get("raster_ul_lat");
         Double lr_lat = (Double) rasterImageParams.get("raster_lr_lat");
         Double pixelPerDegree = rast_height / (ul_lat - lr_lat);
-        Double rtn = n.lat() - ul_lat> 0? -1*(n.lat() - ul_lat) * pixelPerDegree : Math.abs(n.lat() - ul_lat) * pixelPerDegree;
+        Double rtn = lat - ul_lat> 0? -1*(lat - ul_lat) * pixelPerDegree : Math.abs(lat - ul_lat) * pixelPerDegree;
         return rtn.intValue();
 
     }
 
-    /** Uses A* algorithm to return ArrayList of GraphNodes that will connect origin to destination.
-     * Start node in fringe h = 0
-     * pop, calcc new dist (3 terms), update if less, ow keep going*/
-    private static LinkedList<GraphNode> star(GraphNode origin, GraphNode destination) {
-        PriorityQueue<GraphNode> fringe = new PriorityQueue<>(new Comparator<GraphNode>() {
-            @Override
-            public int compare(GraphNode o1, GraphNode o2) {
-                Double f1 = o1.dist() + o1.euclidDistance(destination);
-                Double f2 = o2.dist() + o2.euclidDistance(destination);
-
-                if (f1 > f2){
-                    return 1;
-                } else if (f2 > f1){
-                    return -1;
-                } else {
-                    return 0;
-                }
-            }
-        });
-        HashSet<GraphNode> corrupted = new HashSet<>();
-        origin.setDist(0.0);
-        corrupted.add(origin);
-        fringe.add(origin);
-        while (!fringe.isEmpty()) {
-            GraphNode current = fringe.poll();
-            for (GraphNode neighbor : current.neighbors()){
-                if (neighbor.equals(destination)){
-                    neighbor.setParent(current);
-                    LinkedList<GraphNode> route = new LinkedList<>();
-
-                    GraphNode curr = neighbor;
-
-                    while(curr != null) {
-                        route.addFirst(curr);
-                        curr = curr.getParent();
-                    }
-
-                    for(GraphNode n: corrupted){
-                        n.reset();
-                    }
-                    return route;
-                } else {
-                    Double cost = current.dist() + current.euclidDistance(neighbor);
-                    if (neighbor.dist() > cost){
-                        neighbor.setDist(cost);
-                        neighbor.setParent(current);
-                        fringe.add(neighbor);
-                        corrupted.add(neighbor);
-                    }
+    /** Json body of a /matrix request. */
+    private static class MatrixQuery {
+        double[][] sources;
+        double[][] targets;
+        String profile;
+    }
 
+    /**
+     * Computes the travel cost from every source point to every target point. All points are
+     * snapped to their closest road node in one batch first. Halts if any point is not a pair
+     * of finite numbers, or if there are more than MAX_MATRIX_POINTS sources or targets or
+     * more than MAX_MATRIX_CELLS cells.
+     * @param sources Source points, as {lon, lat} pairs.
+     * @param targets Target points, as {lon, lat} pairs.
+     * @param profile Cost model of the table.
+     * @return A map of parameters for the Json response as specified: <br>
+     * "rows" -> Integer, the number of sources. <br>
+     * "cols" -> Integer, the number of targets. <br>
+     * "profile" -> String, the cost model used. <br>
+     * "source_ids" -> Array of the node ids the sources snapped to. <br>
+     * "target_ids" -> Array of the node ids the targets snapped to. <br>
+     * "costs" -> Row-major array of rows * cols costs; -1 marks an unreachable target. <br>
+     */
+    public static Map<String, Object> getDistanceMatrix(double[][] sources, double[][] targets,
+                                                        RouteProfile profile) {
+        if (sources == null || targets == null) {
+            halt(HALT_RESPONSE, "Request failed - sources and targets required.");
+        }
+        if (sources.length > MAX_MATRIX_POINTS || targets.length > MAX_MATRIX_POINTS
+                || (long) sources.length * targets.length > MAX_MATRIX_CELLS) {
+            halt(HALT_RESPONSE, "Incorrect parameters - at most " + MAX_MATRIX_POINTS
+                    + " sources and targets, and " + MAX_MATRIX_CELLS + " cells.");
+        }
+        int[] sourceNodes = snap(sources);
+        int[] targetNodes = snap(targets);
+        float[] costs = DistanceMatrix.compute(g.graph(), sourceNodes, targetNodes, profile);
+        Map<String, Object> result = new HashMap<>();
+        result.put("rows", sources.length);
+        result.put("cols", targets.length);
+        result.put("profile", profile.name().toLowerCase());
+        result.put("source_ids", nodeIds(sourceNodes));
+        result.put("target_ids", nodeIds(targetNodes));
+        result.put("costs", costs);
+        return result;
+    }
 
-                }
+    /**
+     * Snaps every point to its closest road node. Halts unless points are all {lon, lat} pairs
+     * of finite numbers.
+     */
+    private static int[] snap(double[][] points) {
+        if (points == null) {
+            halt(HALT_RESPONSE, "Request failed - sources and targets required.");
+        }
+        double[] lons = new double[points.length];
+        double[] lats = new double[points.length];
+        for (int i = 0; i < points.length; i++) {
+            double[] p = points[i];
+            if (p == null || p.length < 2 || !Double.isFinite(p[0]) || !Double.isFinite(p[1])) {
+                halt(HALT_RESPONSE, "Incorrect parameters - points must be [lon, lat] pairs.");
             }
-
+            lons[i] = points[i][0];
+            lats[i] = points[i][1];
         }
-        return null;
-
+        return g.findClosest(lons, lats);
     }
 
-
-
-
-
-
+    private static long[] nodeIds(int[] nodes) {
+        long[] ids = new long[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            ids[i] = g.graph().table().id(nodes[i]);
+        }
+        return ids;
+    }
 
     /**
      * In linear time, collect all the names of OSM locations that prefix-match the query string.
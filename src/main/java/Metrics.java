@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide instrumentation of the hot paths, exposed on /metrics in the Prometheus text
+ * format. Stage timings and search sizes are {@link Histogram}s, reported as summaries with
+ * quantiles over the life of the process; everything else is a counter or a gauge.
+ */
+public final class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    /* Graph loading passes, once per region, then the stages of a raster, in pipeline order,
+     * then the route search stages. */
+    static final Histogram GRAPH_WAYS = new Histogram();
+    static final Histogram GRAPH_NODES = new Histogram();
+    static final Histogram GRAPH_BUILD = new Histogram();
+    static final Histogram TILE_SELECTION = new Histogram();
+    static final Histogram TILE_LOAD = new Histogram();
+    static final Histogram COMPOSITE = new Histogram();
+    static final Histogram CROP = new Histogram();
+    static final Histogram OVERLAY = new Histogram();
+    static final Histogram JPEG_ENCODE = new Histogram();
+    static final Histogram BASE64 = new Histogram();
+    static final Histogram JSON = new Histogram();
+    static final Histogram VECTOR_TILE = new Histogram();
+    static final Histogram ROUTE_SNAP = new Histogram();
+    static final Histogram ASTAR = new Histogram();
+    /** Nodes settled by each A* search. */
+    static final Histogram ASTAR_EXPANDED = new Histogram();
+    /** Largest fringe of each A* search. */
+    static final Histogram ASTAR_HEAP = new Histogram();
+
+    static final LongAdder TILE_CACHE_HITS = new LongAdder();
+    static final LongAdder TILE_CACHE_MISSES = new LongAdder();
+    /** Tiles read from disk ahead of the requests of a client. */
+    static final LongAdder TILES_PREFETCHED = new LongAdder();
+    /** Raster requests served by a computation already in flight. */
+    static final LongAdder RASTERS_COALESCED = new LongAdder();
+
+    /** Whole-request latency, by endpoint path. */
+    private static final Map<String, Histogram> REQUESTS = new ConcurrentSkipListMap<>();
+    private static final List<Admission> ADMISSIONS = new CopyOnWriteArrayList<>();
+
+    private Metrics() {
+    }
+
+    /** Records the latency of a request to path, in nanoseconds. */
+    static void request(String path, long nanos) {
+        REQUESTS.computeIfAbsent(path, p -> new Histogram()).record(nanos);
+    }
+
+    /** Records one A* search. */
+    static void search(long nanos, int expanded, int maxHeap) {
+        ASTAR.record(nanos);
+        ASTAR_EXPANDED.record(expanded);
+        ASTAR_HEAP.record(maxHeap);
+    }
+
+    /** Adds admission to the reported endpoints. */
+    static void register(Admission admission) {
+        ADMISSIONS.add(admission);
+    }
+
+    /** Writes every metric to out, in the Prometheus text exposition format. */
+    public static void write(Writer out) throws IOException {
+        header(out, "bearmaps_stage_seconds", "summary",
+                "Time spent in each stage of graph loading and request handling.");
+        stage(out, "graph_ways", GRAPH_WAYS);
+        stage(out, "graph_nodes", GRAPH_NODES);
+        stage(out, "graph_build", GRAPH_BUILD);
+        stage(out, "tile_selection", TILE_SELECTION);
+        stage(out, "tile_load", TILE_LOAD);
+        stage(out, "composite", COMPOSITE);
+        stage(out, "crop", CROP);
+        stage(out, "overlay", OVERLAY);
+        stage(out, "jpeg_encode", JPEG_ENCODE);
+        stage(out, "base64", BASE64);
+        stage(out, "json", JSON);
+        stage(out, "vector_tile", VECTOR_TILE);
+        stage(out, "route_snap", ROUTE_SNAP);
+        stage(out, "astar", ASTAR);
+
+        header(out, "bearmaps_request_seconds", "summary", "Latency of whole requests.");
+        for (Map.Entry<String, Histogram> e : REQUESTS.entrySet()) {
+            summary(out, "bearmaps_request_seconds", "endpoint=\"" + e.getKey() + "\"",
+                    e.getValue(), NANOS_PER_SECOND);
+        }
+
+        header(out, "bearmaps_astar_expanded_nodes", "summary", "Nodes settled per A* search.");
+        summary(out, "bearmaps_astar_expanded_nodes", null, ASTAR_EXPANDED, 1);
+        header(out, "bearmaps_astar_heap_size", "summary", "Largest fringe per A* search.");
+        summary(out, "bearmaps_astar_heap_size", null, ASTAR_HEAP, 1);
+
+        long hits = TILE_CACHE_HITS.sum();
+        long misses = TILE_CACHE_MISSES.sum();
+        header(out, "bearmaps_tile_cache_requests_total", "counter", "Tile cache lookups.");
+        sample(out, "bearmaps_tile_cache_requests_total", "result=\"hit\"", hits);
+        sample(out, "bearmaps_tile_cache_requests_total", "result=\"miss\"", misses);
+        header(out, "bearmaps_tile_cache_hit_ratio", "gauge",
+                "Fraction of tile cache lookups that hit.");
+        sample(out, "bearmaps_tile_cache_hit_ratio", null,
+                hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+        header(out, "bearmaps_tiles_prefetched_total", "counter",
+                "Tiles read into the tile cache ahead of requests.");
+        sample(out, "bearmaps_tiles_prefetched_total", null, TILES_PREFETCHED.sum());
+        header(out, "bearmaps_raster_coalesced_total", "counter",
+                "Raster requests that shared a computation already in flight.");
+        sample(out, "bearmaps_raster_coalesced_total", null, RASTERS_COALESCED.sum());
+
+        header(out, "bearmaps_admission_running", "gauge", "Requests running, by endpoint.");
+        for (Admission a : ADMISSIONS) {
+            sample(out, "bearmaps_admission_running", "endpoint=\"" + a.name() + "\"",
+                    a.running());
+        }
+        header(out, "bearmaps_admission_queued", "gauge",
+                "Requests waiting for a slot, by endpoint.");
+        for (Admission a : ADMISSIONS) {
+            sample(out, "bearmaps_admission_queued", "endpoint=\"" + a.name() + "\"",
+                    a.queued());
+        }
+        header(out, "bearmaps_admission_shed_total", "counter",
+                "Requests answered 503 by admission control, by endpoint.");
+        for (Admission a : ADMISSIONS) {
+            sample(out, "bearmaps_admission_shed_total", "endpoint=\"" + a.name() + "\"",
+                    a.shed());
+        }
+    }
+
+    private static void stage(Writer out, String stage, Histogram h) throws IOException {
+        summary(out, "bearmaps_stage_seconds", "stage=\"" + stage + "\"", h,
+                NANOS_PER_SECOND);
+    }
+
+    private static void header(Writer out, String name, String type, String help)
+            throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    /** Writes h as a summary, its values divided by unit. */
+    private static void summary(Writer out, String name, String labels, Histogram h,
+                                double unit) throws IOException {
+        String prefix = labels == null ? "" : labels + ",";
+        for (double q : QUANTILES) {
+            sample(out, name, prefix + "quantile=\"" + q + "\"", h.quantile(q) / unit);
+        }
+        sample(out, name + "_sum", labels, h.sum() / unit);
+        sample(out, name + "_count", labels, h.count());
+    }
+
+    private static void sample(Writer out, String name, String labels, double value)
+            throws IOException {
+        out.write(name);
+        if (labels != null) {
+            out.write("{" + labels + "}");
+        }
+        out.write(" ");
+        out.write(value == Math.rint(value) && Math.abs(value) < 1e15
+                ? Long.toString((long) value) : Double.toString(value));
+        out.write("\n");
+    }
+}
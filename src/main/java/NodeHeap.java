@@ -0,0 +1,87 @@
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of (key, node) pairs, stored in primitive arrays.
+ * A node may be pushed several times with decreasing keys; callers skip the stale
+ * entries when they are polled, which is cheaper than a decrease-key operation.
+ */
+public class NodeHeap {
+    private double[] keys;
+    private int[] nodes;
+    private int size;
+    /** Largest size since the last clear. */
+    private int maxSize;
+
+    public NodeHeap() {
+        keys = new double[64];
+        nodes = new int[64];
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+        maxSize = 0;
+    }
+
+    /** Largest number of entries held at once since the last clear. */
+    public int maxSize() {
+        return maxSize;
+    }
+
+    public void push(double key, int node) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            nodes = Arrays.copyOf(nodes, size * 2);
+        }
+        int i = size++;
+        maxSize = Math.max(maxSize, size);
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (keys[parent] <= key) {
+                break;
+            }
+            keys[i] = keys[parent];
+            nodes[i] = nodes[parent];
+            i = parent;
+        }
+        keys[i] = key;
+        nodes[i] = node;
+    }
+
+    /** Key of the smallest entry. The heap must not be empty. */
+    public double peekKey() {
+        return keys[0];
+    }
+
+    /** Removes the smallest entry and returns its node. The heap must not be empty. */
+    public int poll() {
+        int top = nodes[0];
+        size--;
+        double key = keys[size];
+        int node = nodes[size];
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && keys[child + 1] < keys[child]) {
+                child++;
+            }
+            if (key <= keys[child]) {
+                break;
+            }
+            keys[i] = keys[child];
+            nodes[i] = nodes[child];
+            i = child;
+        }
+        keys[i] = key;
+        nodes[i] = node;
+        return top;
+    }
+}
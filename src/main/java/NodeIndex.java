@@ -0,0 +1,142 @@
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Uniform grid over the connected nodes of a {@link RoadGraph}, for nearest node lookups.
+ * Cells are stored CSR-style: the nodes of cell c are <code>cellNodes[cellStart[c] ..
+ * cellStart[c + 1])</code>. A lookup searches rings of cells around the query point and stops
+ * once no unvisited cell can hold a closer node, so it returns exactly what a linear scan
+ * would, in time proportional to the local node density.
+ * Distances are euclidean in degrees, like {@link GraphNode#euclidDistance}.
+ */
+public class NodeIndex {
+    /** Average number of nodes per cell the grid is sized for. */
+    private static final int NODES_PER_CELL = 4;
+
+    private final RoadGraph graph;
+    private final double minLon, minLat, cellWidth, cellHeight;
+    private final int columns, rows;
+    private final int[] cellStart;
+    private final int[] cellNodes;
+
+    public NodeIndex(RoadGraph graph) {
+        this.graph = graph;
+        int count = 0;
+        double loLon = Double.POSITIVE_INFINITY, loLat = Double.POSITIVE_INFINITY;
+        double hiLon = Double.NEGATIVE_INFINITY, hiLat = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < graph.size(); i++) {
+            if (graph.degree(i) > 0) {
+                count++;
+                loLon = Math.min(loLon, graph.lon(i));
+                hiLon = Math.max(hiLon, graph.lon(i));
+                loLat = Math.min(loLat, graph.lat(i));
+                hiLat = Math.max(hiLat, graph.lat(i));
+            }
+        }
+        if (count == 0) {
+            loLon = hiLon = loLat = hiLat = 0;
+        }
+        int side = Math.max(1, (int) Math.sqrt((double) count / NODES_PER_CELL));
+        minLon = loLon;
+        minLat = loLat;
+        columns = side;
+        rows = side;
+        cellWidth = Math.max((hiLon - loLon) / side, 1e-9);
+        cellHeight = Math.max((hiLat - loLat) / side, 1e-9);
+
+        cellStart = new int[columns * rows + 1];
+        int[] cellOf = new int[graph.size()];
+        for (int i = 0; i < graph.size(); i++) {
+            if (graph.degree(i) > 0) {
+                cellOf[i] = cell(column(graph.lon(i)), row(graph.lat(i)));
+                cellStart[cellOf[i] + 1]++;
+            }
+        }
+        Arrays.parallelPrefix(cellStart, Integer::sum);
+        cellNodes = new int[count];
+        int[] fill = Arrays.copyOf(cellStart, cellStart.length - 1);
+        for (int i = 0; i < graph.size(); i++) {
+            if (graph.degree(i) > 0) {
+                cellNodes[fill[cellOf[i]]++] = i;
+            }
+        }
+    }
+
+    /** Returns the index of the connected node closest to (lon, lat), or -1 if there is none. */
+    public int nearest(double lon, double lat) {
+        int cx = column(lon);
+        int cy = row(lat);
+        int best = -1;
+        double bestDist = Double.POSITIVE_INFINITY;
+        int maxRing = Math.max(columns, rows);
+        for (int r = 0; r <= maxRing; r++) {
+            for (int y = cy - r; y <= cy + r; y++) {
+                if (y < 0 || y >= rows) {
+                    continue;
+                }
+                boolean edgeRow = (y == cy - r || y == cy + r);
+                for (int x = cx - r; x <= cx + r; x += edgeRow ? 1 : 2 * r) {
+                    if (x >= 0 && x < columns) {
+                        int c = cell(x, y);
+                        for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+                            int n = cellNodes[k];
+                            double d = Geo.euclid(lon, lat, graph.lon(n), graph.lat(n));
+                            if (d < bestDist) {
+                                best = n;
+                                bestDist = d;
+                            }
+                        }
+                    }
+                    if (r == 0) {
+                        break;
+                    }
+                }
+            }
+            if (bestDist <= coveredDistance(lon, lat, cx, cy, r)) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    /** Snaps every (lons[i], lats[i]) to its nearest node, in parallel. */
+    public int[] nearest(double[] lons, double[] lats) {
+        int[] result = new int[lons.length];
+        IntStream.range(0, lons.length).parallel()
+                .forEach(i -> result[i] = nearest(lons[i], lats[i]));
+        return result;
+    }
+
+    /**
+     * Distance from (lon, lat) to the closest cell outside the rings 0..r around (cx, cy);
+     * infinite when those rings already cover the whole grid.
+     */
+    private double coveredDistance(double lon, double lat, int cx, int cy, int r) {
+        double d = Double.POSITIVE_INFINITY;
+        if (cx - r > 0) {
+            d = Math.min(d, lon - (minLon + (cx - r) * cellWidth));
+        }
+        if (cx + r < columns - 1) {
+            d = Math.min(d, minLon + (cx + r + 1) * cellWidth - lon);
+        }
+        if (cy - r > 0) {
+            d = Math.min(d, lat - (minLat + (cy - r) * cellHeight));
+        }
+        if (cy + r < rows - 1) {
+            d = Math.min(d, minLat + (cy + r + 1) * cellHeight - lat);
+        }
+        return d;
+    }
+
+    private int column(double lon) {
+        return Math.max(0, Math.min(columns - 1, (int) Math.floor((lon - minLon) / cellWidth)));
+    }
+
+    private int row(double lat) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor((lat - minLat) / cellHeight)));
+    }
+
+    private int cell(int x, int y) {
+        return y * columns + x;
+    }
+}
@@ -0,0 +1,138 @@
+import java.util.Arrays;
+
+/**
+ * Primitive node table used while loading OSM data.
+ * OSM ids are mapped to dense int indices with an open-addressing (linear probing) hash
+ * table, and the coordinates of each node are kept in parallel <code>double[]</code> columns.
+ * Nothing here is boxed, so a node costs a few dozen bytes instead of a
+ * <code>GraphNode</code> plus a <code>HashMap</code> entry.
+ * Coordinates of a reserved but not yet located node are <code>NaN</code>.
+ */
+public class NodeTable {
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    /** Hash slots: OSM id of the slot, and the dense index stored in it. */
+    private long[] keys;
+    private int[] values;
+    private int mask;
+
+    /** Columns, indexed by dense index. */
+    private long[] ids;
+    private double[] lons, lats;
+    private String[] names;
+    private int size;
+
+    public NodeTable() {
+        keys = new long[INITIAL_CAPACITY * 2];
+        values = new int[INITIAL_CAPACITY * 2];
+        Arrays.fill(keys, EMPTY);
+        mask = keys.length - 1;
+        ids = new long[INITIAL_CAPACITY];
+        lons = new double[INITIAL_CAPACITY];
+        lats = new double[INITIAL_CAPACITY];
+        names = new String[INITIAL_CAPACITY];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Returns the dense index of OSM node id, or -1 if it is not in the table. */
+    public int indexOf(long id) {
+        int slot = slot(id);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == id) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** Returns the dense index of OSM node id, reserving a new one if it is absent. */
+    public int add(long id) {
+        int slot = slot(id);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == id) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == ids.length) {
+            growColumns();
+        }
+        int index = size++;
+        keys[slot] = id;
+        values[slot] = index;
+        ids[index] = id;
+        lons[index] = Double.NaN;
+        lats[index] = Double.NaN;
+        if (size * 2 > keys.length) {
+            rehash();
+        }
+        return index;
+    }
+
+    public void setLocation(int index, double lon, double lat) {
+        lons[index] = lon;
+        lats[index] = lat;
+    }
+
+    public void setName(int index, String name) {
+        names[index] = name;
+    }
+
+    /** True once the node at index has been seen in a node element. */
+    public boolean isLocated(int index) {
+        return !Double.isNaN(lons[index]);
+    }
+
+    public long id(int index) {
+        return ids[index];
+    }
+
+    public double lon(int index) {
+        return lons[index];
+    }
+
+    public double lat(int index) {
+        return lats[index];
+    }
+
+    public String name(int index) {
+        return names[index];
+    }
+
+    private int slot(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void growColumns() {
+        int capacity = ids.length * 2;
+        ids = Arrays.copyOf(ids, capacity);
+        lons = Arrays.copyOf(lons, capacity);
+        lats = Arrays.copyOf(lats, capacity);
+        names = Arrays.copyOf(names, capacity);
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        Arrays.fill(keys, EMPTY);
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i]);
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
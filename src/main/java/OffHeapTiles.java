@@ -0,0 +1,336 @@
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Tile pixels held outside the Java heap, in direct ByteBuffer slabs, so that a cache of many
+ * GB adds nothing for the garbage collector to trace or copy. Tiles are copied from their slot
+ * straight into the pixels of a raster; no image object is made for a cached tile.
+ * <p>
+ *     Slabs are cut into fixed size slots of two classes: small slots hold a tile of at most
+ *     256 colors as a palette and one byte per pixel, large slots hold any other tile as int
+ *     RGB. Tiles are stored opaque, as they would be drawn onto a raster. When a class has no
+ *     free slot, one is evicted with the CLOCK algorithm: a slot copied since the hand last
+ *     passed it gets a second chance.
+ * </p>
+ * <p>
+ *     The index from tile key to slot is a ConcurrentHashMap, whose reads take no lock. Each
+ *     slot is guarded by one of STRIPES StampedLocks: a copy out of a slot is an optimistic
+ *     read, retried under the read lock if the slot was rewritten meanwhile.
+ * </p>
+ */
+public class OffHeapTiles {
+    /** Largest tile stored, in pixels on a side. */
+    static final int TILE_SIZE = 256;
+    private static final int PALETTE_SIZE = 256;
+    private static final int SLAB_BYTES = 64 << 20;
+    private static final int STRIPES = 64;
+    /** Share of the budget in small slots; map tiles mostly have few colors. */
+    private static final double SMALL_SHARE = 0.75;
+    private static final long EMPTY = -1;
+
+    /** Header of a slot: its kind, then the width, height and palette size of its tile. */
+    private static final int HEADER_BYTES = 16;
+    private static final int KIND_INDEXED = 1;
+    private static final int KIND_RGB = 2;
+
+    /** Slots of one size, with their own CLOCK hand. */
+    private static class SlotClass {
+        final int slotBytes;
+        final int slotsPerSlab;
+        final int slots;
+        final ByteBuffer[] slabs;
+        final AtomicLongArray keys;
+        final AtomicIntegerArray referenced;
+        /** Next slot never used; once it reaches slots, slots are evicted. */
+        int fresh;
+        int hand;
+        /** Slots given back empty, used before any fresh or evicted slot. */
+        final ArrayDeque<Integer> free = new ArrayDeque<>();
+
+        SlotClass(int slotBytes, long budget) {
+            this.slotBytes = slotBytes;
+            this.slotsPerSlab = Math.max(1, SLAB_BYTES / slotBytes);
+            this.slots = (int) Math.max(1, Math.min(Integer.MAX_VALUE / 2, budget / slotBytes));
+            this.slabs = new ByteBuffer[(slots + slotsPerSlab - 1) / slotsPerSlab];
+            this.keys = new AtomicLongArray(slots);
+            this.referenced = new AtomicIntegerArray(slots);
+            for (int i = 0; i < slots; i++) {
+                keys.set(i, EMPTY);
+            }
+        }
+
+        /** Returns a view of the bytes of slot, positioned at its start. */
+        ByteBuffer slot(int slot) {
+            ByteBuffer view = slabs[slot / slotsPerSlab].duplicate();
+            view.position((slot % slotsPerSlab) * slotBytes);
+            return view.order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private final SlotClass small;
+    private final SlotClass large;
+    /** Slot of each stored tile key; the large class is flagged by the sign bit. */
+    private final ConcurrentHashMap<Long, Integer> index = new ConcurrentHashMap<>();
+    private final StampedLock[] locks = new StampedLock[STRIPES];
+    private final AtomicLong bytes = new AtomicLong();
+
+    /** @param budget Most bytes of slots, allocated as tiles come in. */
+    public OffHeapTiles(long budget) {
+        long smallBudget = (long) (budget * SMALL_SHARE);
+        this.small = new SlotClass(HEADER_BYTES + 4 * PALETTE_SIZE + TILE_SIZE * TILE_SIZE,
+                smallBudget);
+        this.large = new SlotClass(HEADER_BYTES + 4 * TILE_SIZE * TILE_SIZE,
+                budget - smallBudget);
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new StampedLock();
+        }
+    }
+
+    public boolean contains(long key) {
+        return index.containsKey(key);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /** Bytes of the slots in use. */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    /** Whether every slot holds a tile, so that storing another one evicts. */
+    public boolean isFull() {
+        synchronized (small) {
+            if (small.fresh < small.slots || !small.free.isEmpty()) {
+                return false;
+            }
+        }
+        synchronized (large) {
+            return large.fresh >= large.slots && large.free.isEmpty();
+        }
+    }
+
+    /** Drops every tile; the slabs stay allocated, to be reused. */
+    public void clear() {
+        for (SlotClass c : new SlotClass[] {small, large}) {
+            synchronized (c) {
+                for (int i = 0; i < c.fresh; i++) {
+                    long stamp = lock(c, i).writeLock();
+                    c.keys.set(i, EMPTY);
+                    c.referenced.set(i, 0);
+                    lock(c, i).unlockWrite(stamp);
+                }
+                bytes.addAndGet(-(long) (c.fresh - c.free.size()) * c.slotBytes);
+                c.fresh = 0;
+                c.hand = 0;
+                c.free.clear();
+            }
+        }
+        index.clear();
+    }
+
+    /**
+     * Stores tile under key, evicting another tile if its slot class is full. Tiles larger
+     * than TILE_SIZE are not stored.
+     * @return Whether tile is now stored.
+     */
+    public boolean put(long key, BufferedImage tile) {
+        int width = tile.getWidth();
+        int height = tile.getHeight();
+        if (width > TILE_SIZE || height > TILE_SIZE) {
+            return false;
+        }
+        if (index.containsKey(key)) {
+            return true;
+        }
+        int[] rgb = opaque(tile).getRGB(0, 0, width, height, null, 0, width);
+        for (int i = 0; i < rgb.length; i++) {
+            rgb[i] &= 0xffffff;
+        }
+        int[] palette = new int[PALETTE_SIZE];
+        byte[] indexed = new byte[rgb.length];
+        if (TileFormat.index(rgb, palette, indexed) < 0) {
+            indexed = null;
+        }
+        SlotClass c = indexed != null ? small : large;
+        int slot = allocate(c);
+        Integer entry = c == large ? slot | Integer.MIN_VALUE : slot;
+        StampedLock lock = lock(c, slot);
+        long stamp = lock.writeLock();
+        boolean stored = false;
+        try {
+            /* Unindex the evicted tile and index this one under the lock of the slot, so that
+             * the index never keeps a slot for a tile it no longer holds. Until the tile is
+             * written, a reader finding the slot through the index waits on the lock. */
+            long evicted = c.keys.get(slot);
+            if (evicted != EMPTY) {
+                index.remove(evicted, entry);
+                c.keys.set(slot, EMPTY);
+            }
+            if (index.putIfAbsent(key, entry) == null) {
+                ByteBuffer out = c.slot(slot);
+                out.putInt(indexed != null ? KIND_INDEXED : KIND_RGB).putInt(width)
+                        .putInt(height).putInt(PALETTE_SIZE);
+                if (indexed != null) {
+                    out.asIntBuffer().put(palette);
+                    out.position(out.position() + 4 * PALETTE_SIZE);
+                    out.put(indexed);
+                } else {
+                    out.asIntBuffer().put(rgb);
+                }
+                c.keys.set(slot, key);
+                stored = true;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        if (!stored) {
+            /* Another put of key missed at the same time and stored it first. */
+            release(c, slot);
+        }
+        return true;
+    }
+
+    /**
+     * Copies the tile with key into pixels, the int RGB pixels of a raster width pixels wide
+     * and height high, with its upper left corner at (x, y).
+     * @return Whether the tile was stored and copied.
+     */
+    public boolean blit(long key, int[] pixels, int width, int height, int x, int y) {
+        Integer entry = index.get(key);
+        if (entry == null) {
+            return false;
+        }
+        SlotClass c = entry < 0 ? large : small;
+        int slot = entry & Integer.MAX_VALUE;
+        StampedLock lock = lock(c, slot);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            boolean copied = copy(c, slot, key, pixels, width, height, x, y);
+            if (lock.validate(stamp)) {
+                return copied && touch(c, slot);
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return copy(c, slot, key, pixels, width, height, x, y) && touch(c, slot);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private static boolean touch(SlotClass c, int slot) {
+        c.referenced.set(slot, 1);
+        return true;
+    }
+
+    /**
+     * Copies slot into pixels if it holds key. Under an optimistic read the slot may be
+     * rewritten meanwhile; the caller then discards what was copied.
+     */
+    private static boolean copy(SlotClass c, int slot, long key, int[] pixels,
+                                int width, int height, int x, int y) {
+        if (c.keys.get(slot) != key) {
+            return false;
+        }
+        ByteBuffer in = c.slot(slot);
+        int start = in.position();
+        int kind = in.getInt();
+        int tileWidth = Math.max(0, Math.min(TILE_SIZE, in.getInt()));
+        int tileHeight = Math.max(0, Math.min(TILE_SIZE, in.getInt()));
+        in.getInt();
+        int w = Math.max(0, Math.min(tileWidth, width - x));
+        int h = Math.max(0, Math.min(tileHeight, height - y));
+        if (kind == KIND_INDEXED) {
+            IntBuffer palette = in.asIntBuffer();
+            int pixelStart = start + HEADER_BYTES + 4 * PALETTE_SIZE;
+            for (int row = 0; row < h; row++) {
+                int from = pixelStart + row * tileWidth;
+                int to = (y + row) * width + x;
+                for (int col = 0; col < w; col++) {
+                    pixels[to + col] = palette.get(in.get(from + col) & 0xff);
+                }
+            }
+        } else if (kind == KIND_RGB) {
+            IntBuffer rgb = in.asIntBuffer();
+            for (int row = 0; row < h; row++) {
+                rgb.position(row * tileWidth);
+                rgb.get(pixels, (y + row) * width + x, w);
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns a slot of c to write: a free one, a fresh one, or else the next one the CLOCK
+     * hand finds not copied from since it last passed, whose tile the writer evicts.
+     */
+    private int allocate(SlotClass c) {
+        synchronized (c) {
+            int slot;
+            if (!c.free.isEmpty()) {
+                slot = c.free.pop();
+                bytes.addAndGet(c.slotBytes);
+            } else if (c.fresh < c.slots) {
+                slot = c.fresh++;
+                if (c.slabs[slot / c.slotsPerSlab] == null) {
+                    c.slabs[slot / c.slotsPerSlab] = ByteBuffer.allocateDirect(
+                            Math.min(c.slotsPerSlab, c.slots - slot) * c.slotBytes);
+                }
+                bytes.addAndGet(c.slotBytes);
+            } else {
+                while (c.referenced.getAndSet(c.hand, 0) != 0) {
+                    c.hand = (c.hand + 1) % c.slots;
+                }
+                slot = c.hand;
+                c.hand = (c.hand + 1) % c.slots;
+            }
+            /* Not evicted again before the hand comes round, while it is being written. */
+            c.referenced.set(slot, 1);
+            return slot;
+        }
+    }
+
+    /**
+     * Gives back an empty slot of c, allocated but not written. A slot past c.fresh was
+     * allocated before a clear, and is left for fresh allocation to reach.
+     */
+    private void release(SlotClass c, int slot) {
+        synchronized (c) {
+            if (slot < c.fresh) {
+                c.referenced.set(slot, 0);
+                c.free.push(slot);
+                bytes.addAndGet(-c.slotBytes);
+            }
+        }
+    }
+
+    private StampedLock lock(SlotClass c, int slot) {
+        return locks[(c == large ? slot + STRIPES / 2 : slot) % STRIPES];
+    }
+
+    /** Returns tile as it would be drawn onto an opaque raster: over black. */
+    private static BufferedImage opaque(BufferedImage tile) {
+        if (!tile.getColorModel().hasAlpha()) {
+            return tile;
+        }
+        BufferedImage opaque = new BufferedImage(tile.getWidth(), tile.getHeight(),
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = opaque.createGraphics();
+        graphics.drawImage(tile, 0, 0, null);
+        graphics.dispose();
+        return opaque;
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Google encoded polyline format: coordinates rounded to 5 decimal places, delta encoded
+ * against the previous point, and written as variable length base64-like chunks.
+ * See <a href="https://developers.google.com/maps/documentation/utilities/polylinealgorithm">
+ * the format description</a>.
+ */
+public class PolylineEncoder {
+    private PolylineEncoder() {
+    }
+
+    /** Encodes the points (lons[i], lats[i]), latitude first as the format requires. */
+    public static String encode(double[] lons, double[] lats) {
+        StringBuilder sb = new StringBuilder(lons.length * 8);
+        long lastLat = 0;
+        long lastLon = 0;
+        for (int i = 0; i < lons.length; i++) {
+            long lat = Math.round(lats[i] * 1e5);
+            long lon = Math.round(lons[i] * 1e5);
+            encodeValue(sb, lat - lastLat);
+            encodeValue(sb, lon - lastLon);
+            lastLat = lat;
+            lastLon = lon;
+        }
+        return sb.toString();
+    }
+
+    private static void encodeValue(StringBuilder sb, long value) {
+        long v = value < 0 ? ~(value << 1) : (value << 1);
+        while (v >= 0x20) {
+            sb.append((char) ((0x20 | (v & 0x1f)) + 63));
+            v >>= 5;
+        }
+        sb.append((char) (v + 63));
+    }
+}
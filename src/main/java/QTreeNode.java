@@ -9,8 +9,15 @@ import java.util.ArrayList;
  * Created by davidvakshlyak on 7/16/16.
  */
 public class QTreeNode {
+    /** Depth of the deepest tiles. **/
+    static final int MAX_DEPTH = 7;
+    /** Depth of the deepest overzoomed tiles, made from their ancestor at MAX_DEPTH. The
+     * ids of deeper tiles would not fit in an int. **/
+    static final int MAX_OVERZOOM_DEPTH = 9;
 
     private int id, depth;
+    /** Region whose tiles this node is drawn from; null for query boxes. **/
+    private Region region;
     private BufferedImage bi;
     /** Upper Left, Lower Right
      * cartesian points of a QTreeNode **/
@@ -18,6 +25,12 @@ public class QTreeNode {
     private QTreeNode[] children;
 
     public QTreeNode(int id, int depth, Double ullon, Double ullat, Double lrlon, Double lrlat) {
+        this(null, id, depth, ullon, ullat, lrlon, lrlat);
+    }
+
+    public QTreeNode(Region region, int id, int depth,
+                     Double ullon, Double ullat, Double lrlon, Double lrlat) {
+        this.region = region;
         this.id = id;
         this.depth = depth;
         ul = new Point2D.Double(ullon, ullat);
@@ -43,6 +56,33 @@ public class QTreeNode {
         return depth;
     }
 
+    public Region region() {
+        return region;
+    }
+
+    /** Identifies this tile across all regions, since tile ids repeat between regions. **/
+    public long key() {
+        return ((long) region.index() << 32) | id;
+    }
+
+    /** Column of this tile among the tiles of its depth, counted from the west. **/
+    public int x() {
+        int x = 0;
+        for (int rest = id, bit = 1; rest > 0; rest /= 10, bit <<= 1) {
+            x |= ((rest % 10 - 1) & 1) * bit;
+        }
+        return x;
+    }
+
+    /** Row of this tile among the tiles of its depth, counted from the north. **/
+    public int y() {
+        int y = 0;
+        for (int rest = id, bit = 1; rest > 0; rest /= 10, bit <<= 1) {
+            y |= ((rest % 10 - 1) >> 1) * bit;
+        }
+        return y;
+    }
+
     public QTreeNode[] children() {
         return children;
     }
@@ -66,16 +106,16 @@ public class QTreeNode {
     /** Generates and sets children for a particular QTreeNode. **/
     public void generateChildren() {
 
-        this.children[0] = new QTreeNode((id * 10) + 1, depth + 1, ul.getX(), ul.getY(),
+        this.children[0] = new QTreeNode(region, (id * 10) + 1, depth + 1, ul.getX(), ul.getY(),
                 ul.getX() + ((lr.getX() - ul.getX()) / 2),
                 lr.getY() + (ul.getY() - lr.getY()) / 2);
-        this.children[1] = new QTreeNode((id * 10) + 2, depth + 1,
+        this.children[1] = new QTreeNode(region, (id * 10) + 2, depth + 1,
                 ul.getX() + ((lr.getX() - ul.getX()) / 2), ul.getY(),
                 lr.getX(), lr.getY() + (ul.getY() - lr.getY()) / 2);
-        this.children[2] = new QTreeNode((id * 10) + 3, depth + 1, ul.getX(),
+        this.children[2] = new QTreeNode(region, (id * 10) + 3, depth + 1, ul.getX(),
                 lr.getY() + (ul.getY() - lr.getY()) / 2,
                 ul.getX() + ((lr.getX() - ul.getX()) / 2), lr.getY());
-        this.children[3] = new QTreeNode((id * 10) + 4, depth + 1,
+        this.children[3] = new QTreeNode(region, (id * 10) + 4, depth + 1,
                 ul.getX() + ((lr.getX() - ul.getX()) / 2),
                 lr.getY() + (ul.getY() - lr.getY()) / 2,
                 lr.getX(), lr.getY());
@@ -84,7 +124,7 @@ public class QTreeNode {
 
     public void generateBufferedImage() {
         try {
-            bi = ImageIO.read(new File("img/" + id + ".png"));
+            bi = ImageIO.read(new File(region.imgRoot() + id + ".png"));
         } catch (IOException e) {
             bi = null;
         }
@@ -94,17 +134,37 @@ public class QTreeNode {
     /** Fills arrList with goodRes tiles that are closest to the root of the QuadTree
      * and intersect query.**/
     public void checkLDP(ArrayList<QTreeNode> arrTOfill, QTreeNode query, Double ldpGoal) {
+        checkLDP(arrTOfill, query, ldpGoal, MAX_DEPTH);
+    }
+
+    /** Same as checkLDP, but goes down to maxDepth, which may be as deep as
+     * MAX_OVERZOOM_DEPTH. Tiles off query are pruned at once: none of their
+     * descendants can intersect it either. **/
+    public void checkLDP(ArrayList<QTreeNode> arrTOfill, QTreeNode query, Double ldpGoal,
+                         int maxDepth) {
+        if (!this.intersects(query)) {
+            return;
+        }
         Double ldpView = (lonLR() - lonUL()) / 256;
-        if (this.intersects(query) && (ldpView <= ldpGoal || depth == 7)) {
+        if (ldpView <= ldpGoal || depth >= maxDepth) {
             arrTOfill.add(this);
-        } else if (depth < 7) {
+        } else {
             generateChildren();
             for (QTreeNode child : children) {
-                child.checkLDP(arrTOfill, query, ldpGoal);
+                child.checkLDP(arrTOfill, query, ldpGoal, maxDepth);
             }
         }
     }
 
+    /** Returns the id of the ancestor of this tile at the given depth, at most its own. **/
+    public int ancestorId(int ancestorDepth) {
+        int ancestor = id;
+        for (int d = depth; d > ancestorDepth; d--) {
+            ancestor /= 10;
+        }
+        return ancestor;
+    }
+
     /** Prints ID/Depth of QTN n and does same for ALL of its children. (Preorder Traversal) **/
     public void print() {
         String tab = indent(depth);
@@ -128,19 +188,10 @@ public class QTreeNode {
     }
 
     /** Checks if this QTreeNode intersects q.
-     * That is either ul or lr of this is within q. **/
+     * That is their boxes overlap, or at least touch. **/
     public boolean intersects(QTreeNode q) {
-
-        Point2D.Double ll = new Point2D.Double(lonUL(), latLR());
-        Point2D.Double ur = new Point2D.Double(lonLR(), latUL());
-        return  q.contains(ul) || q.contains(lr) || q.contains(ll) || q.contains(ur);
-
-    }
-    private boolean contains(Point2D.Double p) {
-        return (lonUL() <= p.getX() && p.getX() <= lonLR())
-                && (latLR() <= p.getY() && p.getY() <= latUL());
+        return lonUL() <= q.lonLR() && q.lonUL() <= lonLR()
+                && latLR() <= q.latUL() && q.latLR() <= latUL();
     }
 
-
-
 }
@@ -0,0 +1,402 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Builds /raster responses in asynchronous stages, off the server's request threads. A
+ * request is first planned: its tiles are selected, and with them the key it is coalesced by.
+ * The tiles are then fetched from the {@link TileCache} or disk, composited, drawn over with
+ * the route, and encoded. The route search runs alongside the tile fetches.
+ * <p>
+ *     Requests for the same raster are coalesced: a request whose tiles, depth and route match
+ *     those of a raster already being built attaches to that computation and shares its result,
+ *     instead of building it again. This keeps clients that pan together or retry from
+ *     multiplying the work.
+ * </p>
+ * <p>
+ *     Tile fetches run on a fetch pool and every other stage on a compute pool, both with a
+ *     fixed number of threads and a bounded queue. At most MAX_JOBS rasters are being built at
+ *     once; a request for a new one past that fails at once with a RejectedExecutionException,
+ *     as does a job whose tasks overflow a queue. A burst of cold rasters therefore neither
+ *     queues without limit nor ties up the server's request threads, which stay free for the
+ *     cheap endpoints.
+ * </p>
+ * <p>
+ *     Once a client that names itself is served a raster, the tiles it is likely to need next
+ *     are prefetched by a {@link TilePrefetcher}.
+ * </p>
+ * A job can be cancelled at any time, for instance when it times out or when its client sends
+ * a newer request. Once every job attached to a computation is cancelled, the remaining stages
+ * of the computation are skipped.
+ */
+public class RasterPipeline {
+    private static final int COMPUTE_THREADS = Runtime.getRuntime().availableProcessors();
+    /** Tile fetches mostly wait on the disk, so there are more of them than cores. */
+    private static final int FETCH_THREADS = 4 * COMPUTE_THREADS;
+    /** Maximum number of rasters being built at once. */
+    private static final int MAX_JOBS = 32;
+    /** Most tasks a job queues at once on the compute pool: its plan, route and raster. */
+    private static final int MAX_COMPUTE_TASKS_PER_JOB = 3;
+    /** Most tile reads a job is expected to queue at once: a raster of 4096 by 4096. */
+    private static final int MAX_TILES_PER_JOB = 256;
+
+    /** A raster request going through the pipeline. */
+    public static class Job {
+        private final CompletableFuture<Map<String, Object>> result = new CompletableFuture<>();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private final AtomicBoolean detached = new AtomicBoolean();
+        /** The computation the job waits for, once it is planned. */
+        private volatile Computation computation;
+
+        /**
+         * Completes with the Json response parameters of the raster, as filled by
+         * {@link MapServer#getMapRaster} plus "b64_encoded_image_data".
+         */
+        public CompletableFuture<Map<String, Object>> result() {
+            return result;
+        }
+
+        /** Cancels the result, and stops building the raster if no other job waits for it. */
+        public void cancel() {
+            if (cancelled.compareAndSet(false, true)) {
+                result.cancel(false);
+                detachIfCancelled();
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        /** Whether this job and other wait for the same computation. */
+        boolean sharesComputation(Job other) {
+            return computation != null && computation == other.computation;
+        }
+
+        /** Waits for computation, unless the job was cancelled while it was being planned. */
+        private void attach(Computation computation) {
+            this.computation = computation;
+            detachIfCancelled();
+        }
+
+        /**
+         * Detaches a cancelled job from its computation. Both cancel and attach call this, so
+         * that a job cancelled during planning is detached exactly once.
+         */
+        private void detachIfCancelled() {
+            Computation c = computation;
+            if (c != null && cancelled.get() && detached.compareAndSet(false, true)) {
+                c.detach();
+            }
+        }
+    }
+
+    /** The building of one raster, shared by every job that asks for it. */
+    private static class Computation {
+        final CompletableFuture<Map<String, Object>> result = new CompletableFuture<>();
+        /** Number of jobs waiting for the result; once it drops to 0 the work is abandoned. */
+        private final AtomicInteger waiters = new AtomicInteger(1);
+
+        /** Adds a waiting job, unless the computation is already abandoned. */
+        boolean attach() {
+            for (int w = waiters.get(); w > 0; w = waiters.get()) {
+                if (waiters.compareAndSet(w, w + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void detach() {
+            waiters.decrementAndGet();
+        }
+
+        boolean isAbandoned() {
+            return waiters.get() == 0;
+        }
+    }
+
+    private final GraphDB g;
+    private final TileCache cache;
+    private final List<Region> regions;
+    private final TilePrefetcher prefetcher;
+    private final ExecutorService computePool;
+    private final ExecutorService fetchPool;
+    private final Semaphore jobs = new Semaphore(MAX_JOBS);
+    /** Rasters being built, by the key of their request. */
+    private final ConcurrentHashMap<String, Computation> inFlight = new ConcurrentHashMap<>();
+    /** Latest job of each client that named itself, to cancel when it sends another. */
+    private final ConcurrentHashMap<String, Job> latest = new ConcurrentHashMap<>();
+
+    /** @param regions The regions whose tiles rasters are made of. */
+    public RasterPipeline(GraphDB g, TileCache cache, List<Region> regions) {
+        this.g = g;
+        this.cache = cache;
+        this.regions = regions;
+        this.prefetcher = new TilePrefetcher(cache);
+        this.computePool = pool("raster-compute", COMPUTE_THREADS,
+                MAX_JOBS * MAX_COMPUTE_TASKS_PER_JOB);
+        this.fetchPool = pool("raster-fetch", FETCH_THREADS, MAX_JOBS * MAX_TILES_PER_JOB);
+    }
+
+    /**
+     * A fixed pool whose queue holds at most capacity tasks. A task past that is rejected, which
+     * fails the stage, and with it the job, with a RejectedExecutionException.
+     */
+    private static ExecutorService pool(String name, int threads, int capacity) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(capacity), r -> {
+                    Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Starts a raster job, which is planned on the compute pool, then attached to an identical
+     * one in flight or built.
+     * @param client Identifies the requesting client, or null. Submitting a job for a client
+     *               cancels its previous job, whose result the client no longer wants, and
+     *               its raster is followed by a prefetch of the tiles around it.
+     * @param rasterParams Params as described in MapServer's REQUIRED_RASTER_REQUEST_PARAMS.
+     * @param routeParams Route endpoints to draw, as described in MapServer's
+     *                    REQUIRED_ROUTE_REQUEST_PARAMS, or null.
+     * @param profile Cost model of the route search.
+     * @param snapToEdge Whether to snap the route endpoints onto road segments.
+     * @param crop Whether to crop the raster to the query box and scale it to the viewport.
+     * @param degrade Whether to serve a raster one level shallower than asked, with a quarter
+     *                of the tiles, to shed work under load.
+     */
+    public Job submit(String client, Map<String, Double> rasterParams,
+                      Map<String, Double> routeParams, RouteProfile profile,
+                      boolean snapToEdge, boolean crop, boolean degrade) {
+        Job job = new Job();
+        Map<String, Double> cropParams = crop ? rasterParams : null;
+        int coarser = degrade ? 1 : 0;
+        try {
+            computePool.execute(() -> plan(job, client, rasterParams, cropParams, coarser,
+                    routeParams, profile, snapToEdge));
+        } catch (RejectedExecutionException e) {
+            job.result.completeExceptionally(e);
+        }
+
+        if (client != null) {
+            Job previous = latest.put(client, job);
+            if (previous != null) {
+                previous.cancel();
+            }
+            job.result.whenComplete((r, e) -> latest.remove(client, job));
+        }
+        return job;
+    }
+
+    /**
+     * Selects the tiles of job, then attaches it to the computation of the same raster in
+     * flight, or starts one. Runs on the compute pool.
+     */
+    private void plan(Job job, String client, Map<String, Double> rasterParams,
+                      Map<String, Double> cropParams, int coarser,
+                      Map<String, Double> routeParams, RouteProfile profile,
+                      boolean snapToEdge) {
+        if (job.isCancelled()) {
+            return;
+        }
+        List<QTreeNode> tiles;
+        Computation computation;
+        try {
+            Map<String, Object> params = new HashMap<>();
+            tiles = MapServer.rasterTiles(regions, rasterParams, params, coarser);
+            String key = key(params, tiles, coarser, cropParams, routeParams, profile,
+                    snapToEdge);
+            while (true) {
+                computation = inFlight.get(key);
+                if (computation != null) {
+                    if (computation.attach()) {
+                        Metrics.RASTERS_COALESCED.increment();
+                        break;
+                    }
+                    inFlight.remove(key, computation);
+                } else {
+                    computation = new Computation();
+                    if (inFlight.putIfAbsent(key, computation) == null) {
+                        start(key, computation, cropParams, params, tiles, routeParams,
+                                profile, snapToEdge);
+                        break;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            job.result.completeExceptionally(e);
+            return;
+        }
+        job.attach(computation);
+        computation.result.whenComplete((result, e) -> {
+            if (e == null) {
+                job.result.complete(new HashMap<>(result));
+            } else {
+                job.result.completeExceptionally(e);
+            }
+        });
+        if (client != null) {
+            job.result.whenComplete((r, e) -> {
+                if (e == null) {
+                    prefetcher.viewed(client, tiles);
+                }
+            });
+        }
+    }
+
+    /**
+     * Identifies the raster of a request: its region, depth and tile range, how many levels it
+     * was degraded by, the viewport it is cropped to if any, and the route drawn on it. A
+     * degraded request is never coalesced with a full one, even when both come to the same
+     * tiles, as their responses differ in "degraded". When snapping to nodes, route endpoints that
+     * snap to the same nodes draw the same route, so they are keyed by node.
+     */
+    private String key(Map<String, Object> params, List<QTreeNode> tiles, int coarser,
+                       Map<String, Double> cropParams, Map<String, Double> routeParams,
+                       RouteProfile profile, boolean snapToEdge) {
+        StringBuilder key = new StringBuilder();
+        key.append(params.get("depth")).append(':').append(tiles.get(0).key())
+                .append(':').append(tiles.get(tiles.size() - 1).key())
+                .append(':').append(coarser);
+        if (cropParams != null) {
+            key.append(":crop:").append(cropParams.get("ullon"))
+                    .append(',').append(cropParams.get("ullat"))
+                    .append(',').append(cropParams.get("lrlon"))
+                    .append(',').append(cropParams.get("lrlat"))
+                    .append(',').append(cropParams.get("w"))
+                    .append(',').append(cropParams.get("h"));
+        }
+        if (routeParams != null) {
+            key.append(':').append(profile).append(':');
+            if (snapToEdge) {
+                key.append("edge:").append(routeParams.get("start_lon"))
+                        .append(',').append(routeParams.get("start_lat"))
+                        .append(',').append(routeParams.get("end_lon"))
+                        .append(',').append(routeParams.get("end_lat"));
+            } else {
+                key.append(closest(routeParams.get("start_lon"), routeParams.get("start_lat")))
+                        .append(',')
+                        .append(closest(routeParams.get("end_lon"), routeParams.get("end_lat")));
+            }
+        }
+        return key.toString();
+    }
+
+    /** Index of the road node closest to (lon, lat), or -1 if there is none. */
+    private int closest(double lon, double lat) {
+        GraphNode node = g.findClosest(lon, lat);
+        return node == null ? -1 : node.index();
+    }
+
+    /**
+     * Builds the raster of computation, unless MAX_JOBS rasters are already being built. The
+     * raster is cropped to the viewport of cropParams, unless it is null.
+     */
+    private void start(String key, Computation computation, Map<String, Double> cropParams,
+                       Map<String, Object> params, List<QTreeNode> tiles,
+                       Map<String, Double> routeParams, RouteProfile profile,
+                       boolean snapToEdge) {
+        if (!jobs.tryAcquire()) {
+            inFlight.remove(key, computation);
+            computation.result.completeExceptionally(
+                    new RejectedExecutionException("Too many rasters in flight"));
+            return;
+        }
+        CompletableFuture<RoutePath> route = routeParams == null
+                ? CompletableFuture.completedFuture(null)
+                : stage(computePool, computation, () -> g.rasterRoute(
+                        routeParams.get("start_lon"), routeParams.get("start_lat"),
+                        routeParams.get("end_lon"), routeParams.get("end_lat"), profile,
+                        snapToEdge));
+        fetch(computation, tiles)
+                .thenCompose(done -> stage(computePool, computation, () -> {
+                    BufferedImage im = MapServer.composite(cache, tiles,
+                            (Integer) params.get("raster_width"),
+                            (Integer) params.get("raster_height"));
+                    return cropParams == null ? im
+                            : MapServer.cropToViewport(im, cropParams, params);
+                }))
+                .thenCombine(route, (im, path) -> new Object[] {im, path})
+                .thenCompose(pair -> stage(computePool, computation, () -> {
+                    BufferedImage im = (BufferedImage) pair[0];
+                    if (pair[1] != null) {
+                        MapServer.drawRoute((RoutePath) pair[1], params, im);
+                    }
+                    return im;
+                }))
+                .thenCompose(im -> stage(computePool, computation, () -> encode(im, params)))
+                .whenComplete((result, e) -> {
+                    inFlight.remove(key, computation);
+                    jobs.release();
+                    if (e == null) {
+                        computation.result.complete(result);
+                    } else {
+                        computation.result.completeExceptionally(
+                                e instanceof CompletionException ? e.getCause() : e);
+                    }
+                });
+    }
+
+    /** Makes sure tiles are cached, reading those that are not on the fetch pool. */
+    private CompletableFuture<Void> fetch(Computation computation, List<QTreeNode> tiles) {
+        List<CompletableFuture<Void>> reads = new ArrayList<>();
+        for (QTreeNode n : tiles) {
+            if (!cache.hit(n.key())) {
+                reads.add(stage(fetchPool, computation, () -> {
+                    cache.read(n);
+                    return null;
+                }));
+            }
+        }
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private static Map<String, Object> encode(BufferedImage im, Map<String, Object> params) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        MapServer.writeJpgToStream(im, os);
+        long start = System.nanoTime();
+        params.put("b64_encoded_image_data", Base64.getEncoder().encodeToString(os.toByteArray()));
+        Metrics.BASE64.record(System.nanoTime() - start);
+        return params;
+    }
+
+    /** Runs work on pool, unless computation is abandoned by the time it starts. */
+    private static <T> CompletableFuture<T> stage(ExecutorService pool, Computation computation,
+                                                  Supplier<T> work) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            pool.execute(() -> {
+                try {
+                    if (computation.isAbandoned()) {
+                        throw new CancellationException();
+                    }
+                    future.complete(work.get());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
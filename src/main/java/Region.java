@@ -0,0 +1,166 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A map region: an OSM extract plus the folder of quadtree tiles rendered for it, and the
+ * bounding box of its root tile. Regions are read from a properties file such as
+ * <pre>
+ * regions = berkeley, oakland
+ * berkeley.osm = berkeley.osm
+ * berkeley.img = img/
+ * berkeley.ullon = -122.2998046875
+ * berkeley.ullat = 37.892195547244356
+ * berkeley.lrlon = -122.2119140625
+ * berkeley.lrlat = 37.82280243352756
+ * oakland.osm = ...
+ * </pre>
+ * All extracts are merged into a single road graph; nodes shared by two extracts are only
+ * loaded once. Each raster request is served from the tiles of a single region.
+ */
+public class Region {
+    final String name;
+    final String osmPath;
+    final String imgRoot;
+    final double ullon, ullat, lrlon, lrlat;
+    final int index;
+
+    public Region(int index, String name, String osmPath, String imgRoot,
+                  double ullon, double ullat, double lrlon, double lrlat) {
+        this.index = index;
+        this.name = name;
+        this.osmPath = osmPath;
+        this.imgRoot = imgRoot;
+        this.ullon = ullon;
+        this.ullat = ullat;
+        this.lrlon = lrlon;
+        this.lrlat = lrlat;
+    }
+
+    /**
+     * Reads the regions listed in the properties file at configPath. If there is no such file,
+     * returns the single default region built from MapServer's Berkeley constants.
+     * @param configPath Path of the region properties file.
+     * @return The configured regions, in the order they are listed.
+     */
+    public static List<Region> load(String configPath) {
+        List<Region> regions = new ArrayList<>();
+        File configFile = new File(configPath);
+        if (!configFile.exists()) {
+            regions.add(new Region(0, "default", MapServer.OSM_DB_PATH, MapServer.IMG_ROOT,
+                    MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT,
+                    MapServer.ROOT_LRLON, MapServer.ROOT_LRLAT));
+            return regions;
+        }
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(configFile)) {
+            p.load(in);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not read region config " + configPath, e);
+        }
+        for (String name : p.getProperty("regions", "").split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            regions.add(new Region(regions.size(), name,
+                    required(p, name, "osm"), required(p, name, "img"),
+                    Double.parseDouble(required(p, name, "ullon")),
+                    Double.parseDouble(required(p, name, "ullat")),
+                    Double.parseDouble(required(p, name, "lrlon")),
+                    Double.parseDouble(required(p, name, "lrlat"))));
+        }
+        if (regions.isEmpty()) {
+            throw new IllegalArgumentException("No regions listed in " + configPath);
+        }
+        return regions;
+    }
+
+    private static String required(Properties p, String region, String key) {
+        String value = p.getProperty(region + "." + key);
+        if (value == null) {
+            throw new IllegalArgumentException("Region " + region + " is missing " + key);
+        }
+        return value.trim();
+    }
+
+    /**
+     * Picks the region whose root tile overlaps the query box the most, so a query is served
+     * by the tiles covering most of the viewport.
+     */
+    public static Region forQuery(List<Region> regions, double ullon, double ullat,
+                                  double lrlon, double lrlat) {
+        Region best = regions.get(0);
+        double bestOverlap = -1;
+        for (Region r : regions) {
+            double w = Math.min(lrlon, r.lrlon) - Math.max(ullon, r.ullon);
+            double h = Math.min(ullat, r.ullat) - Math.max(lrlat, r.lrlat);
+            double overlap = (w > 0 && h > 0) ? w * h : 0;
+            if (overlap > bestOverlap) {
+                best = r;
+                bestOverlap = overlap;
+            }
+        }
+        return best;
+    }
+
+    /** Returns the root of this region's tile quadtree. */
+    public QTreeNode root() {
+        return new QTreeNode(this, 0, 0, ullon, ullat, lrlon, lrlat);
+    }
+
+    /**
+     * Returns the tile of this region with the given id. The digits of an id, 1 to 4, are the
+     * children taken on the way down from the root, whose id is 0.
+     * @throws IllegalArgumentException if id is not such an id.
+     */
+    public QTreeNode tile(int id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Bad tile id " + id);
+        }
+        QTreeNode n = root();
+        for (char c : (id == 0 ? "" : Integer.toString(id)).toCharArray()) {
+            if (c < '1' || c > '4') {
+                throw new IllegalArgumentException("Bad tile id " + id);
+            }
+            n.generateChildren();
+            n = n.children()[c - '1'];
+        }
+        return n;
+    }
+
+    /**
+     * Returns the tile of this region at column x and row y of the given depth, counted from
+     * the upper left, or null if there is no such tile.
+     */
+    public QTreeNode tile(int depth, int x, int y) {
+        if (depth < 0 || x < 0 || y < 0 || x >= 1 << depth || y >= 1 << depth) {
+            return null;
+        }
+        int id = 0;
+        for (int level = depth - 1; level >= 0; level--) {
+            id = id * 10 + 1 + ((x >> level) & 1) + 2 * ((y >> level) & 1);
+        }
+        return tile(id);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public String osmPath() {
+        return osmPath;
+    }
+
+    public String imgRoot() {
+        return imgRoot;
+    }
+
+    public int index() {
+        return index;
+    }
+}
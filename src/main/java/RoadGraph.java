@@ -0,0 +1,194 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Adjacency of the road network in compressed sparse row (CSR) form.
+ * Nodes are identified by their dense {@link NodeTable} index; the neighbors of node i are
+ * <code>targets[offsets[i] .. offsets[i + 1])</code>, sorted by index.
+ * <p>
+ *     The build is done in bulk: every consecutive pair of nodes in a connection becomes two
+ *     directed edges packed into a long (source in the high bits, target in the low bits).
+ *     The packed edges are sorted with a parallel sort, which also groups them by source, so
+ *     de-duplication is a single scan and the CSR arrays fall out of a prefix sum over degrees.
+ * </p>
+ * <p>
+ *     Each edge slot also has a highway class (taken from the first way in file order that
+ *     contains the edge) and one precomputed weight per {@link RouteProfile}, so the cost of an
+ *     edge during a search is a single array read.
+ * </p>
+ */
+public class RoadGraph {
+    private static final long NO_EDGE = -1L;
+
+    private final NodeTable table;
+    private final GraphNode[] nodes;
+    private final int[] offsets;
+    private final int[] targets;
+    private final byte[] edgeClass;
+    /** Edge weights, indexed by profile ordinal then edge slot. */
+    private final double[][] weights;
+
+    private RoadGraph(NodeTable table, int[] offsets, int[] targets) {
+        this.table = table;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.nodes = new GraphNode[table.size()];
+        this.edgeClass = new byte[targets.length];
+        this.weights = new double[RouteProfile.values().length][targets.length];
+    }
+
+    /**
+     * Builds the adjacency of every connection in connections, then materializes a GraphNode
+     * for every node that ended up with at least one neighbor.
+     */
+    public static RoadGraph build(NodeTable table, List<Connection> connections) {
+        int n = table.size();
+        int[] edgeStart = new int[connections.size() + 1];
+        for (int c = 0; c < connections.size(); c++) {
+            edgeStart[c + 1] = edgeStart[c] + 2 * (connections.get(c).nodes().length - 1);
+        }
+
+        long[] edges = new long[edgeStart[connections.size()]];
+        IntStream.range(0, connections.size()).parallel().forEach(c -> {
+            int[] way = connections.get(c).nodes();
+            int e = edgeStart[c];
+            for (int i = 0; i < way.length - 1; i++) {
+                int a = way[i];
+                int b = way[i + 1];
+                // Repeated refs in a way would otherwise become self loops.
+                edges[e++] = (a == b) ? NO_EDGE : pack(a, b);
+                edges[e++] = (a == b) ? NO_EDGE : pack(b, a);
+            }
+        });
+        Arrays.parallelSort(edges);
+
+        int unique = 0;
+        for (int i = 0; i < edges.length; i++) {
+            if (edges[i] != NO_EDGE && (unique == 0 || edges[unique - 1] != edges[i])) {
+                edges[unique++] = edges[i];
+            }
+        }
+
+        int[] offsets = new int[n + 1];
+        int[] targets = new int[unique];
+        for (int i = 0; i < unique; i++) {
+            offsets[source(edges[i]) + 1]++;
+        }
+        Arrays.parallelPrefix(offsets, Integer::sum);
+        IntStream.range(0, unique).parallel().forEach(i -> targets[i] = target(edges[i]));
+
+        RoadGraph graph = new RoadGraph(table, offsets, targets);
+        graph.assignClasses(connections);
+        IntStream.range(0, n).parallel().forEach(i -> {
+            if (graph.degree(i) > 0) {
+                graph.nodes[i] = new GraphNode(graph, i);
+                graph.computeWeights(i);
+            }
+        });
+        return graph;
+    }
+
+    /** Gives each edge slot the highway class of the first connection that contains it. */
+    private void assignClasses(List<Connection> connections) {
+        Arrays.fill(edgeClass, (byte) -1);
+        for (Connection c : connections) {
+            byte highwayClass = RouteProfile.highwayClass(c.highway());
+            int[] way = c.nodes();
+            for (int i = 0; i < way.length - 1; i++) {
+                setClass(way[i], way[i + 1], highwayClass);
+                setClass(way[i + 1], way[i], highwayClass);
+            }
+        }
+    }
+
+    private void setClass(int source, int target, byte highwayClass) {
+        int e = edge(source, target);
+        if (e >= 0 && edgeClass[e] < 0) {
+            edgeClass[e] = highwayClass;
+        }
+    }
+
+    /** Fills in the weight of every outgoing edge of node, for every profile. */
+    private void computeWeights(int node) {
+        double lon = table.lon(node);
+        double lat = table.lat(node);
+        for (int e = offsets[node]; e < offsets[node + 1]; e++) {
+            int t = targets[e];
+            for (RouteProfile p : RouteProfile.values()) {
+                weights[p.ordinal()][e] = p.weight(lon, lat, table.lon(t), table.lat(t),
+                        edgeClass[e]);
+            }
+        }
+    }
+
+    private static long pack(int source, int target) {
+        return ((long) source << 32) | target;
+    }
+
+    private static int source(long edge) {
+        return (int) (edge >>> 32);
+    }
+
+    private static int target(long edge) {
+        return (int) edge;
+    }
+
+    /** Number of node slots, including nodes without any neighbors. */
+    public int size() {
+        return nodes.length;
+    }
+
+    public int degree(int node) {
+        return offsets[node + 1] - offsets[node];
+    }
+
+    public int firstEdge(int node) {
+        return offsets[node];
+    }
+
+    public int lastEdge(int node) {
+        return offsets[node + 1];
+    }
+
+    public int target(int edge) {
+        return targets[edge];
+    }
+
+    /** Returns the slot of the edge from source to target, or -1 if there is none. */
+    public int edge(int source, int target) {
+        int e = Arrays.binarySearch(targets, offsets[source], offsets[source + 1], target);
+        return e >= 0 ? e : -1;
+    }
+
+    /** Returns the weight array of profile, indexed by edge slot. */
+    public double[] weights(RouteProfile profile) {
+        return weights[profile.ordinal()];
+    }
+
+    /** Returns the index in RouteProfile.HIGHWAY_CLASSES of the edge's highway class. */
+    public byte highwayClass(int edge) {
+        return edgeClass[edge];
+    }
+
+    public double lon(int node) {
+        return table.lon(node);
+    }
+
+    public double lat(int node) {
+        return table.lat(node);
+    }
+
+    public int edgeCount() {
+        return targets.length;
+    }
+
+    /** Returns the GraphNode at index, or null if that node has no neighbors. */
+    public GraphNode node(int node) {
+        return nodes[node];
+    }
+
+    public NodeTable table() {
+        return table;
+    }
+}
@@ -0,0 +1,35 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A route found between two points: the graph nodes it passes through, and its full geometry.
+ * When the route was snapped to road segments, the geometry starts and ends at the snapped
+ * points, which are not graph nodes.
+ */
+public class RoutePath {
+    /** Node indices, in route order. */
+    final int[] nodes;
+    /** Route geometry, in route order. */
+    final double[] lons, lats;
+    /** Cost under the profile the route was searched with. */
+    final double cost;
+    /** Length, in meters. */
+    final double distance;
+
+    RoutePath(int[] nodes, double[] lons, double[] lats, double cost, double distance) {
+        this.nodes = nodes;
+        this.lons = lons;
+        this.lats = lats;
+        this.cost = cost;
+        this.distance = distance;
+    }
+
+    /** OSM ids of the route's nodes. */
+    public List<Long> ids(NodeTable table) {
+        List<Long> ids = new ArrayList<>(nodes.length);
+        for (int n : nodes) {
+            ids.add(table.id(n));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,65 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cost model used for routing. Every profile has its own precomputed edge weight array in
+ * {@link RoadGraph}, and a matching lower bound used as the A* heuristic.
+ */
+public enum RouteProfile {
+    /** Straight-line distance in degrees between (lon, lat) pairs, as the route spec requires. */
+    EUCLIDEAN,
+    /** Great-circle length of the road, in meters. */
+    DISTANCE,
+    /** Travel time in seconds, at the typical speed of each highway class. */
+    TIME;
+
+    /** The profile used when a request does not ask for one. */
+    public static final RouteProfile DEFAULT = EUCLIDEAN;
+
+    /** Highway classes an edge can have; the index in this list is the edge's class. */
+    static final List<String> HIGHWAY_CLASSES = Arrays.asList("motorway", "trunk", "primary",
+            "secondary", "tertiary", "unclassified", "residential", "living_street",
+            "motorway_link", "trunk_link", "primary_link", "secondary_link", "tertiary_link");
+    /** Speed of each highway class above, in km/h. */
+    private static final double[] SPEED_KMH = {100, 80, 65, 55, 40, 30, 25, 10,
+        60, 50, 40, 35, 30};
+    private static final double MAX_SPEED_MPS = 100 / 3.6;
+
+    /** Returns the profile named by a request parameter, or DEFAULT if name is null. */
+    public static RouteProfile fromParam(String name) {
+        if (name == null) {
+            return DEFAULT;
+        }
+        return valueOf(name.trim().toUpperCase());
+    }
+
+    /** Returns the class index of a highway tag value, or -1 if it is not a routable class. */
+    static byte highwayClass(String highway) {
+        return (byte) HIGHWAY_CLASSES.indexOf(highway);
+    }
+
+    /** Cost of an edge of the given class between two points. */
+    double weight(double lon1, double lat1, double lon2, double lat2, byte highwayClass) {
+        switch (this) {
+            case EUCLIDEAN:
+                return Geo.euclid(lon1, lat1, lon2, lat2);
+            case DISTANCE:
+                return Geo.distance(lon1, lat1, lon2, lat2);
+            default:
+                double kmh = highwayClass < 0 ? SPEED_KMH[5] : SPEED_KMH[highwayClass];
+                return Geo.distance(lon1, lat1, lon2, lat2) / (kmh / 3.6);
+        }
+    }
+
+    /** Lower bound on the cost between two points, whatever roads connect them. */
+    double estimate(double lon1, double lat1, double lon2, double lat2) {
+        switch (this) {
+            case EUCLIDEAN:
+                return Geo.euclid(lon1, lat1, lon2, lat2);
+            case DISTANCE:
+                return Geo.distance(lon1, lat1, lon2, lat2);
+            default:
+                return Geo.distance(lon1, lat1, lon2, lat2) / MAX_SPEED_MPS;
+        }
+    }
+}
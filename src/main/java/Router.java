@@ -0,0 +1,128 @@
+/**
+ * A* search over the CSR road graph. Works on dense node indices and the precomputed edge
+ * weights of a {@link RouteProfile}; the search state lives in a pooled
+ * {@link SearchWorkspace}, so any number of routes can be searched concurrently.
+ */
+public class Router {
+    private final RoadGraph graph;
+    private final SearchWorkspace.Pool pool;
+
+    public Router(RoadGraph graph) {
+        this(graph, SearchWorkspace.SHARED);
+    }
+
+    /** A router whose searches take their workspaces from pool. */
+    Router(RoadGraph graph, SearchWorkspace.Pool pool) {
+        this.graph = graph;
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the node indices of the cheapest path from origin to destination under profile,
+     * or null if destination cannot be reached.
+     */
+    public int[] route(int origin, int destination, RouteProfile profile) {
+        SearchWorkspace ws = pool.acquire(graph);
+        double[] weights = graph.weights(profile);
+        double destLon = graph.lon(destination);
+        double destLat = graph.lat(destination);
+        long start = System.nanoTime();
+        int expanded = 0;
+        try {
+            ws.visit(origin, 0, SearchWorkspace.NONE);
+            ws.fringe.push(profile.estimate(graph.lon(origin), graph.lat(origin),
+                    destLon, destLat), origin);
+            while (!ws.fringe.isEmpty()) {
+                int current = ws.fringe.poll();
+                if (ws.settled[current]) {
+                    continue;
+                }
+                if (current == destination) {
+                    return ws.path(destination);
+                }
+                ws.settled[current] = true;
+                expanded++;
+                for (int e = graph.firstEdge(current); e < graph.lastEdge(current); e++) {
+                    int neighbor = graph.target(e);
+                    double cost = ws.dist[current] + weights[e];
+                    if (cost < ws.dist[neighbor]) {
+                        ws.visit(neighbor, cost, current);
+                        ws.fringe.push(cost + profile.estimate(graph.lon(neighbor),
+                                graph.lat(neighbor), destLon, destLat), neighbor);
+                    }
+                }
+            }
+            return null;
+        } finally {
+            Metrics.search(System.nanoTime() - start, expanded, ws.fringe.maxSize());
+            ws.release();
+        }
+    }
+
+    /**
+     * Returns the node indices of the cheapest path between two points snapped onto road
+     * segments, or null if there is none. The search starts from both ends of the origin's
+     * segment, each charged the fraction of the segment's cost between it and the snapped
+     * point, and ends the same way on the destination's segment. The returned nodes exclude
+     * the snapped points themselves; an empty path means the route stays on one segment.
+     */
+    public int[] route(EdgeSnap origin, EdgeSnap destination, RouteProfile profile) {
+        SearchWorkspace ws = pool.acquire(graph);
+        double[] weights = graph.weights(profile);
+        double originCost = weights[graph.edge(origin.u, origin.v)];
+        double destCost = weights[graph.edge(destination.u, destination.v)];
+        double best = Double.POSITIVE_INFINITY;
+        int bestEnd = SearchWorkspace.NONE;
+        if (origin.segment == destination.segment) {
+            best = Math.abs(destination.t - origin.t) * originCost;
+        }
+        long start = System.nanoTime();
+        int expanded = 0;
+        try {
+            seed(ws, origin.u, origin.t * originCost, profile, destination);
+            seed(ws, origin.v, (1 - origin.t) * originCost, profile, destination);
+            while (!ws.fringe.isEmpty() && ws.fringe.peekKey() < best) {
+                int current = ws.fringe.poll();
+                if (ws.settled[current]) {
+                    continue;
+                }
+                ws.settled[current] = true;
+                expanded++;
+                if (current == destination.u || current == destination.v) {
+                    double fraction = current == destination.u
+                            ? destination.t : 1 - destination.t;
+                    double cost = ws.dist[current] + fraction * destCost;
+                    if (cost < best) {
+                        best = cost;
+                        bestEnd = current;
+                    }
+                }
+                for (int e = graph.firstEdge(current); e < graph.lastEdge(current); e++) {
+                    int neighbor = graph.target(e);
+                    double cost = ws.dist[current] + weights[e];
+                    if (cost < ws.dist[neighbor]) {
+                        ws.visit(neighbor, cost, current);
+                        ws.fringe.push(cost + profile.estimate(graph.lon(neighbor),
+                                graph.lat(neighbor), destination.lon, destination.lat), neighbor);
+                    }
+                }
+            }
+            if (bestEnd != SearchWorkspace.NONE) {
+                return ws.path(bestEnd);
+            }
+            return best < Double.POSITIVE_INFINITY ? new int[0] : null;
+        } finally {
+            Metrics.search(System.nanoTime() - start, expanded, ws.fringe.maxSize());
+            ws.release();
+        }
+    }
+
+    private void seed(SearchWorkspace ws, int node, double cost, RouteProfile profile,
+                      EdgeSnap destination) {
+        if (cost < ws.dist[node]) {
+            ws.visit(node, cost, SearchWorkspace.NONE);
+            ws.fringe.push(cost + profile.estimate(graph.lon(node), graph.lat(node),
+                    destination.lon, destination.lat), node);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Per-search state of a shortest path search over a {@link RoadGraph}: tentative costs, parent
+ * pointers and settled flags for every node, plus the fringe. The arrays are sized once for the
+ * graph and reused; only the entries touched by a search are reset after it.
+ * A workspace must only be used by one search at a time. Searches take one with
+ * {@link #acquire} and give it back with {@link #release}, so concurrent searches never
+ * share state.
+ * <p>
+ *     Workspaces take about 13 bytes per node of the graph, so they are pooled rather than
+ *     kept per thread: at most MAX_WORKSPACES exist at once in the shared pool, however many
+ *     threads search. That is as many searches as the routing endpoints admit at once; a
+ *     search beyond that waits for a workspace, which costs little as searches are bound by
+ *     the CPU anyway. Routes drawn on rasters take theirs from a separate RASTER pool, so a
+ *     burst of batch routing never holds up the raster pipeline.
+ * </p>
+ */
+public class SearchWorkspace {
+    static final int NONE = -1;
+
+    /** Most workspaces of the shared pool: twice the cores, like the routing admission limit. */
+    private static final int MAX_WORKSPACES = 2 * Runtime.getRuntime().availableProcessors();
+    /** Pool of the routing endpoints. */
+    static final Pool SHARED = new Pool(MAX_WORKSPACES);
+    /**
+     * Pool of the route stages of the raster pipeline: one workspace per raster compute
+     * thread, so a route stage never waits for one.
+     */
+    static final Pool RASTER = new Pool(Runtime.getRuntime().availableProcessors());
+
+    final double[] dist;
+    final int[] parent;
+    final boolean[] settled;
+    final NodeHeap fringe;
+    private int[] touched;
+    private int touchedCount;
+    /** Pool this workspace goes back to when released; null outside of any pool. */
+    private Pool pool;
+
+    public SearchWorkspace(int size) {
+        dist = new double[size];
+        parent = new int[size];
+        settled = new boolean[size];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        Arrays.fill(parent, NONE);
+        fringe = new NodeHeap();
+        touched = new int[64];
+    }
+
+    /**
+     * Takes a workspace for graph from the shared pool, waiting while MAX_WORKSPACES are in
+     * use, and creating one if none is idle. Every workspace acquired must be released.
+     */
+    public static SearchWorkspace acquire(RoadGraph graph) {
+        return SHARED.acquire(graph);
+    }
+
+    /** Resets this workspace after a search and gives it back to its pool. */
+    public void release() {
+        reset();
+        if (pool != null) {
+            pool.give(this);
+        }
+    }
+
+    /** A bounded pool of workspaces: at most as many exist as it has permits. */
+    static final class Pool {
+        private final BlockingQueue<SearchWorkspace> idle;
+        /** One permit per workspace that may be handed out. */
+        private final Semaphore permits;
+
+        Pool(int size) {
+            idle = new ArrayBlockingQueue<>(size);
+            permits = new Semaphore(size);
+        }
+
+        /**
+         * Takes a workspace for graph, waiting while all of them are in use, and creating one
+         * if none is idle. Every workspace acquired must be released.
+         */
+        SearchWorkspace acquire(RoadGraph graph) {
+            permits.acquireUninterruptibly();
+            SearchWorkspace ws = idle.poll();
+            if (ws == null || !ws.fits(graph)) {
+                // An idle workspace for another graph is dropped, so the count stays bounded.
+                ws = new SearchWorkspace(graph.size());
+                ws.pool = this;
+            }
+            return ws;
+        }
+
+        private void give(SearchWorkspace ws) {
+            idle.offer(ws);
+            permits.release();
+        }
+    }
+
+    /** True if this workspace has a slot for every node of graph. */
+    public boolean fits(RoadGraph graph) {
+        return dist.length == graph.size();
+    }
+
+    /** Records cost as the best known cost of node, reached from node from. */
+    void visit(int node, double cost, int from) {
+        if (dist[node] == Double.POSITIVE_INFINITY) {
+            if (touchedCount == touched.length) {
+                touched = Arrays.copyOf(touched, touchedCount * 2);
+            }
+            touched[touchedCount++] = node;
+        }
+        dist[node] = cost;
+        parent[node] = from;
+    }
+
+    /** Follows parent pointers back from node, returning the path in forward order. */
+    int[] path(int node) {
+        int length = 0;
+        for (int n = node; n != NONE; n = parent[n]) {
+            length++;
+        }
+        int[] path = new int[length];
+        for (int n = node; n != NONE; n = parent[n]) {
+            path[--length] = n;
+        }
+        return path;
+    }
+
+    /** Number of nodes reached by the current search. */
+    int touchedCount() {
+        return touchedCount;
+    }
+
+    /** The i-th node reached by the current search, in order of first visit. */
+    int touched(int i) {
+        return touched[i];
+    }
+
+    /** Clears the state of the last search, to start another on the same workspace. */
+    void reset() {
+        for (int i = 0; i < touchedCount; i++) {
+            int n = touched[i];
+            dist[n] = Double.POSITIVE_INFINITY;
+            parent[n] = NONE;
+            settled[n] = false;
+        }
+        touchedCount = 0;
+        fringe.clear();
+    }
+}
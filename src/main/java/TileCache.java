@@ -0,0 +1,279 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of decoded tile images, shared by every raster request.
+ * Tiles are keyed by {@link QTreeNode#key()}; once the pixels of the cached tiles take more than
+ * the budget, the least recently used tiles are evicted. Tiles read from disk are kept in a
+ * {@link TileFormat}, compact by default, so the budget holds several times more of them than
+ * of decoded PNGs. Safe for use by many threads. A tile missed by several threads at once may
+ * be read from disk more than once, which is harmless.
+ * <p>
+ *     The cache can instead keep tiles off the heap, in {@link OffHeapTiles}, so that a large
+ *     budget does not lengthen GC pauses. Either way, rasters are made by copying tiles into
+ *     their pixels with {@link #blit}.
+ * </p>
+ * <p>
+ *     A tile with no image on disk is remembered as missing, up to MAX_MISSING of them, so
+ *     that it is looked for on disk only once and is then drawn blank like a cached tile.
+ * </p>
+ * <p>
+ *     Tiles deeper than QTreeNode.MAX_DEPTH have no image on disk; they are made from their
+ *     ancestor at that depth when first needed, and then cached like any other tile.
+ * </p>
+ * Lookups through hit and load count towards the hit rate in {@link Metrics}, and towards
+ * the access count of their tile, which {@link TileWarmer} saves to warm the next run.
+ */
+public class TileCache {
+    /** Default budget, in bytes of pixels: a thousand decoded 256x256 tiles, a quarter of a GB. */
+    static final long DEFAULT_BUDGET = 256L << 20;
+    /** Most tiles remembered as missing; the least recently looked up are forgotten first. */
+    static final int MAX_MISSING = 1 << 16;
+
+    private final long budget;
+    private final TileFormat format;
+    /** Tiles kept off the heap, or null to keep them in tiles. */
+    private final OffHeapTiles offHeap;
+    private final LinkedHashMap<Long, BufferedImage> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    /** Bytes of pixels of the tiles kept on the heap. */
+    private long bytes;
+    /** Keys of tiles with no image, in least recently used order. */
+    private final LinkedHashMap<Long, Boolean> missing = new LinkedHashMap<Long, Boolean>(
+            16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > MAX_MISSING;
+        }
+    };
+    /** Number of lookups of each tile key. */
+    private final ConcurrentHashMap<Long, LongAdder> accesses = new ConcurrentHashMap<>();
+
+    /**
+     * @param budget Most bytes of pixels kept.
+     * @param format Format tiles read from disk are kept in on the heap.
+     * @param offHeap Whether to keep tiles off the heap instead, where they are always stored
+     *                losslessly, with a palette when they have few enough colors.
+     */
+    public TileCache(long budget, TileFormat format, boolean offHeap) {
+        this.budget = budget;
+        this.format = format;
+        this.offHeap = offHeap ? new OffHeapTiles(budget) : null;
+    }
+
+    /** Returns whether the tile with key is cached, counting the lookup. */
+    public boolean hit(long key) {
+        boolean hit = contains(key);
+        accesses.computeIfAbsent(key, k -> new LongAdder()).increment();
+        (hit ? Metrics.TILE_CACHE_HITS : Metrics.TILE_CACHE_MISSES).increment();
+        return hit;
+    }
+
+    /**
+     * Whether the tile with key is cached, or known to have no image; unlike hit, not counted
+     * as a lookup.
+     */
+    public boolean contains(long key) {
+        return (offHeap != null ? offHeap.contains(key) : lookup(key) != null) || isMissing(key);
+    }
+
+    /** Whether the tile with key is known to have no image. */
+    private synchronized boolean isMissing(long key) {
+        return missing.get(key) != null;
+    }
+
+    private synchronized void putMissing(long key) {
+        missing.put(key, Boolean.TRUE);
+    }
+
+    private synchronized BufferedImage lookup(long key) {
+        return tiles.get(key);
+    }
+
+    private synchronized void put(long key, BufferedImage image) {
+        BufferedImage previous = tiles.put(key, image);
+        if (previous != null) {
+            bytes -= TileFormat.bytes(previous);
+        }
+        bytes += TileFormat.bytes(image);
+        Iterator<BufferedImage> eldest = tiles.values().iterator();
+        while (bytes > budget && tiles.size() > 1) {
+            bytes -= TileFormat.bytes(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    /** Makes sure tile n is cached, reading it from disk on a miss; counted as a lookup. */
+    public void load(QTreeNode n) {
+        if (!hit(n.key())) {
+            read(n);
+        }
+    }
+
+    /**
+     * Reads tile n from disk into the cache after a miss, unless another thread has read it
+     * since.
+     */
+    public void read(QTreeNode n) {
+        if (!contains(n.key())) {
+            store(n);
+        }
+    }
+
+    /**
+     * Reads tile n from disk, or makes it if it is overzoomed, and caches it. Returns its image,
+     * or null if it has none, in which case it is remembered as missing.
+     */
+    private BufferedImage store(QTreeNode n) {
+        long start = System.nanoTime();
+        BufferedImage image;
+        if (n.depth() > QTreeNode.MAX_DEPTH) {
+            image = overzoom(n);
+        } else {
+            n.generateBufferedImage();
+            image = n.bi();
+        }
+        if (image != null && offHeap != null) {
+            offHeap.put(n.key(), image);
+        } else if (image != null) {
+            image = format.compact(image);
+            put(n.key(), image);
+        } else {
+            putMissing(n.key());
+        }
+        Metrics.TILE_LOAD.record(System.nanoTime() - start);
+        return image;
+    }
+
+    /**
+     * Makes overzoomed tile n, which has no image on disk, by cropping the part of its
+     * ancestor at QTreeNode.MAX_DEPTH it covers and scaling it up to a full tile. The ancestor
+     * is read through the cache, so the tiles around n are made from the same cached tile.
+     * Returns null if the ancestor has no image.
+     */
+    private BufferedImage overzoom(QTreeNode n) {
+        int levels = n.depth() - QTreeNode.MAX_DEPTH;
+        QTreeNode ancestor = n.region().tile(n.ancestorId(QTreeNode.MAX_DEPTH));
+        read(ancestor);
+        if (isMissing(ancestor.key())) {
+            return null;
+        }
+        int size = MapServer.TILE_SIZE;
+        BufferedImage source = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) source.getRaster().getDataBuffer()).getData();
+        BufferedImage drawn = blit(ancestor, pixels, size, size, 0, 0);
+        if (drawn != null) {
+            Graphics2D graphics = source.createGraphics();
+            graphics.drawImage(drawn, 0, 0, null);
+            graphics.dispose();
+        }
+
+        int part = size >> levels;
+        int mask = (1 << levels) - 1;
+        BufferedImage crop = source.getSubimage((n.x() & mask) * part, (n.y() & mask) * part,
+                part, part);
+        BufferedImage tile = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = tile.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(crop, 0, 0, size, size, null);
+        graphics.dispose();
+        return tile;
+    }
+
+    /**
+     * Copies tile n into pixels, the int RGB pixels of a raster width pixels wide and height
+     * high, with its upper left corner at (x, y). A tile no longer cached is read from disk
+     * again; a missing tile is left blank. Not counted as a lookup.
+     * @return The image of the tile if it has to be drawn instead, as it is not held in a form
+     *         that can be copied; otherwise null.
+     */
+    public BufferedImage blit(QTreeNode n, int[] pixels, int width, int height, int x, int y) {
+        if (isMissing(n.key())) {
+            return null;
+        }
+        BufferedImage image;
+        if (offHeap != null) {
+            if (offHeap.blit(n.key(), pixels, width, height, x, y)) {
+                return null;
+            }
+            image = store(n);
+        } else {
+            image = lookup(n.key());
+            if (image == null) {
+                image = store(n);
+            }
+        }
+        if (image == null || TileFormat.blit(image, pixels, width, height, x, y)) {
+            return null;
+        }
+        return image;
+    }
+
+    /** Drops every cached tile. */
+    public void clear() {
+        if (offHeap != null) {
+            offHeap.clear();
+        }
+        synchronized (this) {
+            tiles.clear();
+            missing.clear();
+            bytes = 0;
+        }
+    }
+
+    public int size() {
+        if (offHeap != null) {
+            return offHeap.size();
+        }
+        synchronized (this) {
+            return tiles.size();
+        }
+    }
+
+    /** Bytes taken by the cached tiles. */
+    public long bytes() {
+        if (offHeap != null) {
+            return offHeap.bytes();
+        }
+        synchronized (this) {
+            return bytes;
+        }
+    }
+
+    /** Whether the cache holds as many tiles as its budget allows. */
+    public boolean isFull() {
+        if (offHeap != null) {
+            return offHeap.isFull();
+        }
+        synchronized (this) {
+            return bytes >= budget;
+        }
+    }
+
+    /**
+     * Returns the number of lookups of each tile looked up so far, except for tiles known to
+     * have no image, which are not worth warming.
+     */
+    public Map<Long, Long> accessCounts() {
+        Map<Long, Long> counts = new HashMap<>(accesses.size());
+        for (Map.Entry<Long, LongAdder> e : accesses.entrySet()) {
+            if (!isMissing(e.getKey())) {
+                counts.put(e.getKey(), e.getValue().sum());
+            }
+        }
+        return counts;
+    }
+
+    /** Adds count to the lookups of the tile with key, as if it had been looked up. */
+    public void addAccesses(long key, long count) {
+        accesses.computeIfAbsent(key, k -> new LongAdder()).add(count);
+    }
+}
@@ -0,0 +1,197 @@
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.IndexColorModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * How decoded tiles are held in the {@link TileCache}. A decoded PNG takes 3 or 4 bytes per
+ * pixel, but map tiles have few distinct colors, so most fit in a palette of 256 colors at one
+ * byte per pixel, losslessly. Compact tiles are expanded straight into the int pixels of the
+ * raster by {@link #blit}, which is faster than drawing them.
+ * <p>
+ *     Only opaque tiles are made compact, so a compact tile composites exactly like the
+ *     original.
+ * </p>
+ */
+public enum TileFormat {
+    /** Tiles as decoded. */
+    FULL,
+    /** One byte per pixel for tiles of at most 256 colors, which is lossless; others full. */
+    INDEXED,
+    /**
+     * Like INDEXED, but tiles with more colors take two bytes per pixel, with 5 bits of red
+     * and blue and 6 of green. This loses a little color.
+     */
+    RGB565;
+
+    private static final int PALETTE_SIZE = 256;
+
+    /** Returns the format named by param: "full", "indexed" or "rgb565". */
+    public static TileFormat fromParam(String param) {
+        return valueOf(param.trim().toUpperCase());
+    }
+
+    /** Returns tile in this format, or tile itself if it cannot be made compact. */
+    public BufferedImage compact(BufferedImage tile) {
+        if (this == FULL || tile == null) {
+            return tile;
+        }
+        int width = tile.getWidth();
+        int height = tile.getHeight();
+        int[] rgb = tile.getRGB(0, 0, width, height, null, 0, width);
+        for (int p : rgb) {
+            if (p >>> 24 != 0xff) {
+                return tile;
+            }
+        }
+        BufferedImage indexed = indexed(rgb, width, height);
+        if (indexed != null) {
+            return indexed;
+        }
+        return this == RGB565 ? rgb565(rgb, width, height) : tile;
+    }
+
+    /** Returns the pixels of rgb with a palette, or null if they have too many colors. */
+    private static BufferedImage indexed(int[] rgb, int width, int height) {
+        int[] palette = new int[PALETTE_SIZE];
+        byte[] pixels = new byte[rgb.length];
+        int size = index(rgb, palette, pixels);
+        if (size < 0) {
+            return null;
+        }
+        IndexColorModel model = new IndexColorModel(8, size, palette, 0, false, -1,
+                DataBuffer.TYPE_BYTE);
+        BufferedImage indexed = new BufferedImage(width, height,
+                BufferedImage.TYPE_BYTE_INDEXED, model);
+        byte[] data = ((DataBufferByte) indexed.getRaster().getDataBuffer()).getData();
+        System.arraycopy(pixels, 0, data, 0, pixels.length);
+        return indexed;
+    }
+
+    /**
+     * Fills palette with the colors of rgb and pixels with the palette index of each of its
+     * pixels. Returns the number of colors, or -1 if there are more than fit in a palette.
+     */
+    static int index(int[] rgb, int[] palette, byte[] pixels) {
+        /* Open addressing table from color to palette index, twice the palette size. */
+        int[] colors = new int[2 * PALETTE_SIZE];
+        int[] slots = new int[2 * PALETTE_SIZE];
+        int size = 0;
+        int last = 0;
+        int lastIndex = -1;
+        for (int i = 0; i < rgb.length; i++) {
+            int color = rgb[i];
+            if (color != last || lastIndex < 0) {
+                int slot = (color * 0x9e3779b1) >>> 23;
+                while (slots[slot] != 0 && colors[slot] != color) {
+                    slot = (slot + 1) & (2 * PALETTE_SIZE - 1);
+                }
+                if (slots[slot] == 0) {
+                    if (size == PALETTE_SIZE) {
+                        return -1;
+                    }
+                    colors[slot] = color;
+                    palette[size] = color;
+                    slots[slot] = ++size;
+                }
+                last = color;
+                lastIndex = slots[slot] - 1;
+            }
+            pixels[i] = (byte) lastIndex;
+        }
+        return size;
+    }
+
+    private static BufferedImage rgb565(int[] rgb, int width, int height) {
+        BufferedImage packed = new BufferedImage(width, height,
+                BufferedImage.TYPE_USHORT_565_RGB);
+        short[] data = ((DataBufferUShort) packed.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < rgb.length; i++) {
+            int p = rgb[i];
+            data[i] = (short) ((p >> 8 & 0xf800) | (p >> 5 & 0x07e0) | (p >> 3 & 0x001f));
+        }
+        return packed;
+    }
+
+    /**
+     * Copies a compact tile into pixels, the int RGB pixels of a raster width pixels wide and
+     * height high, with its upper left corner at (x, y).
+     * @return Whether tile was compact and copied; other tiles must be drawn instead.
+     */
+    public static boolean blit(BufferedImage tile, int[] pixels, int width, int height,
+                               int x, int y) {
+        int type = tile.getType();
+        if (type != BufferedImage.TYPE_BYTE_INDEXED && type != BufferedImage.TYPE_USHORT_565_RGB
+                || tile.getColorModel().getTransparency() != Transparency.OPAQUE) {
+            return false;
+        }
+        int stride = scanlineStride(tile.getRaster());
+        if (stride < 0) {
+            return false;
+        }
+        int w = Math.min(tile.getWidth(), width - x);
+        int h = Math.min(tile.getHeight(), height - y);
+        if (type == BufferedImage.TYPE_BYTE_INDEXED) {
+            IndexColorModel model = (IndexColorModel) tile.getColorModel();
+            int[] palette = new int[PALETTE_SIZE];
+            model.getRGBs(palette);
+            byte[] data = ((DataBufferByte) tile.getRaster().getDataBuffer()).getData();
+            for (int row = 0; row < h; row++) {
+                int from = row * stride;
+                int to = (y + row) * width + x;
+                for (int col = 0; col < w; col++) {
+                    pixels[to + col] = palette[data[from + col] & 0xff] & 0xffffff;
+                }
+            }
+        } else {
+            short[] data = ((DataBufferUShort) tile.getRaster().getDataBuffer()).getData();
+            for (int row = 0; row < h; row++) {
+                int from = row * stride;
+                int to = (y + row) * width + x;
+                for (int col = 0; col < w; col++) {
+                    int p = data[from + col];
+                    int r = p >> 11 & 0x1f;
+                    int g = p >> 5 & 0x3f;
+                    int b = p & 0x1f;
+                    pixels[to + col] = (r << 3 | r >> 2) << 16 | (g << 2 | g >> 4) << 8
+                            | (b << 3 | b >> 2);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the distance between rows of the one sample per pixel of raster, if it is laid
+     * out plainly from the start of its data buffer, otherwise -1.
+     */
+    private static int scanlineStride(WritableRaster raster) {
+        if (raster.getParent() != null || raster.getSampleModelTranslateX() != 0
+                || raster.getSampleModelTranslateY() != 0
+                || raster.getDataBuffer().getOffset() != 0) {
+            return -1;
+        }
+        SampleModel model = raster.getSampleModel();
+        if (model instanceof ComponentSampleModel
+                && ((ComponentSampleModel) model).getPixelStride() == 1) {
+            return ((ComponentSampleModel) model).getScanlineStride();
+        }
+        if (model instanceof SinglePixelPackedSampleModel) {
+            return ((SinglePixelPackedSampleModel) model).getScanlineStride();
+        }
+        return -1;
+    }
+
+    /** Approximate heap taken by the pixels of image, in bytes. */
+    public static long bytes(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks()
+                * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+}
@@ -0,0 +1,174 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads tiles into the {@link TileCache} ahead of a client's next raster. Clients pan and zoom
+ * in small steps, so the next raster mostly needs tiles just outside the last one, or the
+ * tiles of the same area one level deeper or shallower. Once a raster is served, the tiles of
+ * the ring around it and of the levels above and below are read on a background pool, most
+ * likely first: the side the client is panning towards, then the rest of the ring, then the
+ * level it is zooming towards.
+ * <p>
+ *     Prefetching never delays requests: its pool is small, and tiles that do not fit in its
+ *     queue are dropped rather than waited for.
+ * </p>
+ */
+public class TilePrefetcher {
+    /** Most tiles prefetched after one raster. */
+    private static final int MAX_TILES = 64;
+    private static final int THREADS =
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    /** Number of clients whose last viewport is remembered. */
+    private static final int MAX_CLIENTS = 4096;
+
+    /** The tiles of a raster, as a range of columns and rows at one depth of a region. */
+    private static class Viewport {
+        final Region region;
+        final int depth, x0, y0, x1, y1;
+
+        Viewport(List<QTreeNode> tiles) {
+            QTreeNode first = tiles.get(0);
+            QTreeNode last = tiles.get(tiles.size() - 1);
+            this.region = first.region();
+            this.depth = first.depth();
+            this.x0 = first.x();
+            this.y0 = first.y();
+            this.x1 = last.x();
+            this.y1 = last.y();
+        }
+    }
+
+    private final TileCache cache;
+    private final ExecutorService pool;
+    /** Last viewport of each client, least recently seen first. */
+    private final Map<String, Viewport> viewports =
+            new LinkedHashMap<String, Viewport>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Viewport> eldest) {
+                    return size() > MAX_CLIENTS;
+                }
+            };
+
+    public TilePrefetcher(TileCache cache) {
+        this.cache = cache;
+        this.pool = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(4 * MAX_TILES), r -> {
+                    Thread t = new Thread(r, "tile-prefetch");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * Records that client was served a raster of tiles, in row-major order, and starts
+     * prefetching the tiles its next raster is likely to need.
+     */
+    public void viewed(String client, List<QTreeNode> tiles) {
+        Viewport now = new Viewport(tiles);
+        Viewport before;
+        synchronized (viewports) {
+            before = viewports.put(client, now);
+        }
+        if (before != null && before.region != now.region) {
+            before = null;
+        }
+        for (QTreeNode n : around(now, before)) {
+            pool.execute(() -> {
+                if (!cache.contains(n.key())) {
+                    cache.read(n);
+                    Metrics.TILES_PREFETCHED.increment();
+                }
+            });
+        }
+    }
+
+    /** Returns the tiles around now likely to be needed next, most likely first. */
+    private static List<QTreeNode> around(Viewport now, Viewport before) {
+        int dx = 0;
+        int dy = 0;
+        int dz = 0;
+        if (before != null && before.depth == now.depth) {
+            dx = Integer.signum(now.x0 - before.x0);
+            dy = Integer.signum(now.y0 - before.y0);
+        } else if (before != null) {
+            dz = Integer.signum(now.depth - before.depth);
+        }
+
+        Set<Long> ids = new LinkedHashSet<>();
+        /* The edge being panned towards, two tiles deep. */
+        if (dx != 0) {
+            int x = dx > 0 ? now.x1 : now.x0;
+            addRange(ids, now, x + dx, now.y0 - 1, x + 2 * dx, now.y1 + 1);
+        }
+        if (dy != 0) {
+            int y = dy > 0 ? now.y1 : now.y0;
+            addRange(ids, now, now.x0 - 1, y + dy, now.x1 + 1, y + 2 * dy);
+        }
+        /* The rest of the ring around the viewport. */
+        addRange(ids, now, now.x0 - 1, now.y0 - 1, now.x1 + 1, now.y0 - 1);
+        addRange(ids, now, now.x0 - 1, now.y1 + 1, now.x1 + 1, now.y1 + 1);
+        addRange(ids, now, now.x0 - 1, now.y0, now.x0 - 1, now.y1);
+        addRange(ids, now, now.x1 + 1, now.y0, now.x1 + 1, now.y1);
+        /* The same area one level shallower and deeper, the way of the zoom first. */
+        if (dz > 0) {
+            addDeeper(ids, now);
+            addShallower(ids, now);
+        } else {
+            addShallower(ids, now);
+            addDeeper(ids, now);
+        }
+
+        List<QTreeNode> tiles = new ArrayList<>(Math.min(ids.size(), MAX_TILES));
+        for (long packed : ids) {
+            if (tiles.size() == MAX_TILES) {
+                break;
+            }
+            tiles.add(now.region.tile((int) (packed >> 32), (int) (packed >> 16) & 0xffff,
+                    (int) packed & 0xffff));
+        }
+        return tiles;
+    }
+
+    private static void addRange(Set<Long> ids, Viewport now, int xa, int ya, int xb, int yb) {
+        addLevel(ids, now, now.depth, xa, ya, xb, yb);
+    }
+
+    private static void addShallower(Set<Long> ids, Viewport now) {
+        addLevel(ids, now, now.depth - 1, now.x0 / 2, now.y0 / 2, now.x1 / 2, now.y1 / 2);
+    }
+
+    private static void addDeeper(Set<Long> ids, Viewport now) {
+        addLevel(ids, now, now.depth + 1, now.x0 * 2, now.y0 * 2, now.x1 * 2 + 1, now.y1 * 2 + 1);
+    }
+
+    /**
+     * Adds the existing tiles of depth in the columns from xa to xb and rows from ya to yb,
+     * except those of the viewport itself.
+     */
+    private static void addLevel(Set<Long> ids, Viewport now, int depth,
+                                 int xa, int ya, int xb, int yb) {
+        if (depth < 0 || depth > MapServer.OVERZOOM_DEPTH) {
+            return;
+        }
+        int last = (1 << depth) - 1;
+        int x0 = Math.max(0, Math.min(xa, xb));
+        int x1 = Math.min(last, Math.max(xa, xb));
+        int y0 = Math.max(0, Math.min(ya, yb));
+        int y1 = Math.min(last, Math.max(ya, yb));
+        for (int y = y0; y <= y1; y++) {
+            for (int x = x0; x <= x1; x++) {
+                if (depth != now.depth || x < now.x0 || x > now.x1 || y < now.y0 || y > now.y1) {
+                    ids.add((long) depth << 32 | (long) x << 16 | y);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the {@link TileCache} warm across restarts. The access count of every tile is saved
+ * to a small file every SAVE_PERIOD_S seconds; on startup, the most accessed tiles of the last
+ * runs are read back into the cache in the background, until it is full, while the server
+ * takes traffic. The first users after a restart then find the popular viewports decoded.
+ * <p>
+ *     The file has one line per tile, most accessed first: the index of its region, its id and
+ *     its access count. Counts read back are halved, so that tiles popular long ago fade.
+ * </p>
+ */
+public class TileWarmer {
+    private static final long SAVE_PERIOD_S = 60;
+    /** Most tiles saved, more than a full cache of compact tiles. */
+    private static final int MAX_SAVED = 16384;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private final TileCache cache;
+    private final List<Region> regions;
+    private final Path path;
+
+    /**
+     * @param cache Cache to warm and whose accesses are saved.
+     * @param regions Regions of the tiles, by index.
+     * @param path Path of the access count file.
+     */
+    public TileWarmer(TileCache cache, List<Region> regions, String path) {
+        this.cache = cache;
+        this.regions = regions;
+        this.path = Paths.get(path);
+    }
+
+    /**
+     * Reads back the saved access counts and starts warming the cache with the most accessed
+     * tiles, then saves the counts periodically. Returns at once; all the work is done on
+     * daemon threads.
+     */
+    public void start() {
+        List<long[]> saved = read();
+        for (long[] tile : saved) {
+            cache.addAccesses(tile[0], tile[1] / 2);
+        }
+        warm(saved);
+
+        ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "tile-warmer-save");
+            t.setDaemon(true);
+            return t;
+        });
+        saver.scheduleWithFixedDelay(() -> {
+            try {
+                save();
+            } catch (IOException e) {
+                System.err.println("Could not save tile accesses to " + path + ": " + e);
+            }
+        }, SAVE_PERIOD_S, SAVE_PERIOD_S, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reads the tiles of every well formed line of the file, as {key, count}. Lines with a
+     * negative field, or a region or id past Integer.MAX_VALUE, are skipped.
+     */
+    private List<long[]> read() {
+        List<long[]> tiles = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length != 3) {
+                    continue;
+                }
+                try {
+                    long region = Long.parseLong(fields[0]);
+                    long id = Long.parseLong(fields[1]);
+                    long count = Long.parseLong(fields[2]);
+                    if (region < 0 || region > Integer.MAX_VALUE || id < 0
+                            || id > Integer.MAX_VALUE || count < 0) {
+                        continue;
+                    }
+                    tiles.add(new long[] {region << 32 | id, count});
+                } catch (NumberFormatException e) {
+                    // Skip lines that are not tiles.
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // First run: nothing to warm.
+        } catch (IOException e) {
+            System.err.println("Could not read tile accesses from " + path + ": " + e);
+        }
+        return tiles;
+    }
+
+    /**
+     * Reads tiles into the cache, most accessed first, on a pool of daemon threads which ends
+     * once they are in or the cache is full.
+     */
+    private void warm(List<long[]> tiles) {
+        if (tiles.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "tile-warmer");
+            t.setDaemon(true);
+            return t;
+        });
+        for (long[] tile : tiles) {
+            int region = (int) (tile[0] >>> 32);
+            int id = (int) tile[0];
+            if (region < 0 || region >= regions.size()) {
+                continue;
+            }
+            pool.execute(() -> {
+                if (cache.isFull()) {
+                    return;
+                }
+                try {
+                    cache.read(regions.get(region).tile(id));
+                } catch (IllegalArgumentException e) {
+                    // A tile of a region whose config changed since the file was saved.
+                }
+            });
+        }
+        pool.shutdown();
+        Thread report = new Thread(() -> {
+            try {
+                pool.awaitTermination(1, TimeUnit.HOURS);
+                System.out.println(String.format("Warmed tile cache with %d tiles in %d ms",
+                        cache.size(), (System.nanoTime() - start) / 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "tile-warmer-report");
+        report.setDaemon(true);
+        report.start();
+    }
+
+    /**
+     * Writes the access counts of the MAX_SAVED most accessed tiles, replacing the file at
+     * once so that a crash never leaves it half written.
+     */
+    void save() throws IOException {
+        List<Map.Entry<Long, Long>> counts = new ArrayList<>(cache.accessCounts().entrySet());
+        if (counts.isEmpty()) {
+            return;
+        }
+        counts.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<Long, Long> e : counts.subList(0,
+                    Math.min(counts.size(), MAX_SAVED))) {
+                out.write((e.getKey() >>> 32) + " " + (int) (long) e.getKey() + " "
+                        + e.getValue());
+                out.newLine();
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
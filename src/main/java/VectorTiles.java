@@ -0,0 +1,337 @@
+import com.google.gson.Gson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Road geometry cut into the same quadtree tiles as the map images, for clients that draw the
+ * roads and route overlays themselves. A vector tile holds the part of every road
+ * {@link Connection} within or near it, in integer tile coordinates from 0 to EXTENT, with x
+ * to the east and y to the south. Lines are simplified with Douglas-Peucker to half a pixel of
+ * a tile drawn TILE_SIZE pixels wide, so shallow tiles, which cover more road, do not carry
+ * more points than deep ones.
+ * <p>
+ *     Connections are bucketed into a uniform {@link CellGrid} once, sized like that of
+ *     {@link EdgeIndex} by the number of connections rather than by the box of all roads:
+ *     each is listed in every cell the box of one of its segments overlaps. Building a tile
+ *     only looks at the connections of the cells under it, so a tile deep in the quadtree
+ *     costs about as much as the roads it holds, not as all the roads of the map.
+ * </p>
+ * <p>
+ *     Tiles are encoded as Json once, when first requested, and kept in an LRU cache bounded
+ *     by the length of their Json. Each road is an object with its name, highway class and
+ *     geometry: the first point of the line, then the offset of every other point from the
+ *     one before it, as a flat array of x and y.
+ * </p>
+ */
+public class VectorTiles {
+    /** Side of a tile, in tile coordinates. */
+    static final int EXTENT = 4096;
+    /** Margin kept around a tile, in tile coordinates, so thick lines meet across tile edges. */
+    private static final int BUFFER = 64;
+    /** Largest distance of a point dropped by simplification, in tile coordinates. */
+    private static final double TOLERANCE = EXTENT / MapServer.TILE_SIZE / 2.0;
+    /** Default budget, in chars of Json: some thousands of city tiles. */
+    static final long DEFAULT_BUDGET = 64L << 20;
+    /** Average number of connections per grid cell the grid is sized for, at the least. */
+    private static final int CONNECTIONS_PER_CELL = 4;
+
+    private final RoadGraph graph;
+    private final List<Connection> connections;
+    /** Bounding box of each connection. */
+    private final double[] minLon, minLat, maxLon, maxLat;
+    /** Lower left corner and side of the grid cells, in degrees. */
+    private final double gridLon, gridLat, cellDegrees;
+    private final int columns, rows;
+    /** The connections of cell c are cellConnections[cellStart[c] .. cellStart[c + 1]). */
+    private final int[] cellStart;
+    private final int[] cellConnections;
+    private final long budget;
+    private final LinkedHashMap<Long, String> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    /** Chars of Json of the cached tiles. */
+    private long chars;
+
+    /**
+     * @param graph Graph giving the location of the nodes of connections.
+     * @param connections Roads to cut into tiles.
+     * @param budget Most chars of Json cached.
+     */
+    public VectorTiles(RoadGraph graph, List<Connection> connections, long budget) {
+        this.graph = graph;
+        this.connections = connections;
+        this.budget = budget;
+        int n = connections.size();
+        minLon = new double[n];
+        minLat = new double[n];
+        maxLon = new double[n];
+        maxLat = new double[n];
+        double loLon = Double.POSITIVE_INFINITY, loLat = Double.POSITIVE_INFINITY;
+        double hiLon = Double.NEGATIVE_INFINITY, hiLat = Double.NEGATIVE_INFINITY;
+        for (int c = 0; c < n; c++) {
+            minLon[c] = minLat[c] = Double.POSITIVE_INFINITY;
+            maxLon[c] = maxLat[c] = Double.NEGATIVE_INFINITY;
+            for (int node : connections.get(c).nodes()) {
+                minLon[c] = Math.min(minLon[c], graph.lon(node));
+                minLat[c] = Math.min(minLat[c], graph.lat(node));
+                maxLon[c] = Math.max(maxLon[c], graph.lon(node));
+                maxLat[c] = Math.max(maxLat[c], graph.lat(node));
+            }
+            loLon = Math.min(loLon, minLon[c]);
+            loLat = Math.min(loLat, minLat[c]);
+            hiLon = Math.max(hiLon, maxLon[c]);
+            hiLat = Math.max(hiLat, maxLat[c]);
+        }
+        if (n == 0) {
+            loLon = hiLon = loLat = hiLat = 0;
+        }
+        gridLon = loLon;
+        gridLat = loLat;
+        cellDegrees = CellGrid.cellSide(hiLon - loLon, hiLat - loLat,
+                Math.max(1, n / CONNECTIONS_PER_CELL), 1e-9);
+        columns = column(hiLon) + 1;
+        rows = row(hiLat) + 1;
+
+        CellGrid grid = new CellGrid(columns * rows, n, this::forEachCell);
+        cellStart = grid.start;
+        cellConnections = grid.items;
+    }
+
+    /** Visits every cell the box of a segment of connection overlaps, once. */
+    private void forEachCell(int connection, CellGrid.CellVisitor visitor) {
+        int[] nodes = connections.get(connection).nodes();
+        int[] cells = new int[8];
+        int count = 0;
+        for (int i = 0; i + 1 < nodes.length; i++) {
+            double lonA = graph.lon(nodes[i]), lonB = graph.lon(nodes[i + 1]);
+            double latA = graph.lat(nodes[i]), latB = graph.lat(nodes[i + 1]);
+            int x0 = column(Math.min(lonA, lonB)), x1 = column(Math.max(lonA, lonB));
+            int y0 = row(Math.min(latA, latB)), y1 = row(Math.max(latA, latB));
+            for (int cy = y0; cy <= y1; cy++) {
+                for (int cx = x0; cx <= x1; cx++) {
+                    if (count == cells.length) {
+                        cells = Arrays.copyOf(cells, count * 2);
+                    }
+                    cells[count++] = cy * columns + cx;
+                }
+            }
+        }
+        // Consecutive segments share cells; visit each one once.
+        Arrays.sort(cells, 0, count);
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || cells[i] != cells[i - 1]) {
+                visitor.visit(cells[i]);
+            }
+        }
+    }
+
+    private int column(double lon) {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE / 2,
+                (lon - gridLon) / cellDegrees));
+    }
+
+    private int row(double lat) {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE / 2,
+                (lat - gridLat) / cellDegrees));
+    }
+
+    /** Returns the connections listed in the cells under the given box, in order. */
+    private int[] candidates(double loLon, double loLat, double hiLon, double hiLat) {
+        int x0 = Math.min(columns - 1, column(loLon));
+        int x1 = Math.min(columns - 1, column(hiLon));
+        int y0 = Math.min(rows - 1, row(loLat));
+        int y1 = Math.min(rows - 1, row(hiLat));
+        int[] found = new int[64];
+        int count = 0;
+        for (int cy = y0; cy <= y1; cy++) {
+            for (int cx = x0; cx <= x1; cx++) {
+                int cell = cy * columns + cx;
+                for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, count * 2);
+                    }
+                    found[count++] = cellConnections[k];
+                }
+            }
+        }
+        // A connection is listed in every cell it crosses; keep it once.
+        Arrays.sort(found, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || found[unique - 1] != found[i]) {
+                found[unique++] = found[i];
+            }
+        }
+        return Arrays.copyOf(found, unique);
+    }
+
+    /** Returns the Json of vector tile n, building it on a miss. */
+    public String json(QTreeNode n) {
+        String json = lookup(n.key());
+        if (json == null) {
+            long start = System.nanoTime();
+            json = new Gson().toJson(build(n));
+            put(n.key(), json);
+            Metrics.VECTOR_TILE.record(System.nanoTime() - start);
+        }
+        return json;
+    }
+
+    private synchronized String lookup(long key) {
+        return tiles.get(key);
+    }
+
+    private synchronized void put(long key, String json) {
+        String previous = tiles.put(key, json);
+        if (previous != null) {
+            chars -= previous.length();
+        }
+        chars += json.length();
+        Iterator<String> eldest = tiles.values().iterator();
+        while (chars > budget && tiles.size() > 1) {
+            chars -= eldest.next().length();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Builds vector tile n, as described above, as a map of parameters for the Json response:
+     * <br>
+     * "region" -> Integer, the index of the region of the tile. <br>
+     * "depth", "x", "y" -> Integer, the depth, column and row of the tile. <br>
+     * "extent" -> Integer, EXTENT. <br>
+     * "roads" -> Array of roads, each with "name", "highway" and "geometry". <br>
+     */
+    Map<String, Object> build(QTreeNode n) {
+        double scaleX = EXTENT / (n.lonLR() - n.lonUL());
+        double scaleY = EXTENT / (n.latUL() - n.latLR());
+        double loLon = n.lonUL() - BUFFER / scaleX;
+        double hiLon = n.lonLR() + BUFFER / scaleX;
+        double loLat = n.latLR() - BUFFER / scaleY;
+        double hiLat = n.latUL() + BUFFER / scaleY;
+
+        List<Map<String, Object>> roads = new ArrayList<>();
+        int[] xs = new int[64];
+        int[] ys = new int[64];
+        for (int c : candidates(loLon, loLat, hiLon, hiLat)) {
+            if (maxLon[c] < loLon || minLon[c] > hiLon || maxLat[c] < loLat || minLat[c] > hiLat) {
+                continue;
+            }
+            Connection connection = connections.get(c);
+            int[] nodes = connection.nodes();
+            if (xs.length < nodes.length) {
+                xs = new int[nodes.length];
+                ys = new int[nodes.length];
+            }
+            /* Each run of segments touching the buffered tile becomes a line of its own. */
+            int count = 0;
+            for (int i = 0; i < nodes.length; i++) {
+                boolean near = i + 1 < nodes.length
+                        && segmentNear(nodes[i], nodes[i + 1], loLon, loLat, hiLon, hiLat);
+                if (near || count > 0) {
+                    xs[count] = (int) Math.round((graph.lon(nodes[i]) - n.lonUL()) * scaleX);
+                    ys[count] = (int) Math.round((n.latUL() - graph.lat(nodes[i])) * scaleY);
+                    count++;
+                }
+                if (!near && count > 0) {
+                    addRoad(roads, connection, xs, ys, count);
+                    count = 0;
+                }
+            }
+        }
+
+        Map<String, Object> tile = new HashMap<>();
+        tile.put("region", n.region().index());
+        tile.put("depth", n.depth());
+        tile.put("x", n.x());
+        tile.put("y", n.y());
+        tile.put("extent", EXTENT);
+        tile.put("roads", roads);
+        return tile;
+    }
+
+    /** Whether the box of the segment from node a to node b overlaps the given box. */
+    private boolean segmentNear(int a, int b, double loLon, double loLat,
+                                double hiLon, double hiLat) {
+        return Math.max(graph.lon(a), graph.lon(b)) >= loLon
+                && Math.min(graph.lon(a), graph.lon(b)) <= hiLon
+                && Math.max(graph.lat(a), graph.lat(b)) >= loLat
+                && Math.min(graph.lat(a), graph.lat(b)) <= hiLat;
+    }
+
+    /** Simplifies the line of the first count points and adds it, unless it vanishes. */
+    private static void addRoad(List<Map<String, Object>> roads, Connection connection,
+                                int[] xs, int[] ys, int count) {
+        boolean[] keep = simplify(xs, ys, count);
+        int[] geometry = new int[2 * count];
+        int size = 0;
+        int lastX = 0;
+        int lastY = 0;
+        for (int i = 0; i < count; i++) {
+            if (!keep[i] || size > 0 && xs[i] == lastX && ys[i] == lastY) {
+                continue;
+            }
+            geometry[size++] = xs[i] - lastX;
+            geometry[size++] = ys[i] - lastY;
+            lastX = xs[i];
+            lastY = ys[i];
+        }
+        if (size < 4) {
+            return;
+        }
+        Map<String, Object> road = new HashMap<>();
+        road.put("name", connection.name());
+        road.put("highway", connection.highway());
+        road.put("geometry", Arrays.copyOf(geometry, size));
+        roads.add(road);
+    }
+
+    /**
+     * Douglas-Peucker: marks the points of the line of the first count points to keep, so
+     * that no dropped point is further than TOLERANCE from the simplified line.
+     */
+    static boolean[] simplify(int[] xs, int[] ys, int count) {
+        boolean[] keep = new boolean[count];
+        keep[0] = true;
+        keep[count - 1] = true;
+        int[] stack = new int[2 * count];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            double dx = xs[last] - xs[first];
+            double dy = ys[last] - ys[first];
+            double length = Math.sqrt(dx * dx + dy * dy);
+            double farthest = TOLERANCE;
+            int split = -1;
+            for (int i = first + 1; i < last; i++) {
+                double px = xs[i] - xs[first];
+                double py = ys[i] - ys[first];
+                double distance = length == 0 ? Math.sqrt(px * px + py * py)
+                        : Math.abs(px * dy - py * dx) / length;
+                if (distance > farthest) {
+                    farthest = distance;
+                    split = i;
+                }
+            }
+            if (split >= 0) {
+                keep[split] = true;
+                stack[top++] = first;
+                stack[top++] = split;
+                stack[top++] = split;
+                stack[top++] = last;
+            }
+        }
+        return keep;
+    }
+
+    public synchronized int size() {
+        return tiles.size();
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * A way as read from the OSM file: its node refs and the tags we care about.
+ * Tags may appear in any order inside a way element, so a WayRecord is only
+ * built once the whole element has been read.
+ */
+public class WayRecord {
+    final long id;
+    final long[] refs;
+    final String name;
+    final String highway;
+
+    public WayRecord(long id, long[] refs, String name, String highway) {
+        this.id = id;
+        this.refs = refs;
+        this.name = name;
+        this.highway = highway;
+    }
+
+    public long id() {
+        return id;
+    }
+
+    public long[] refs() {
+        return refs;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public String highway() {
+        return highway;
+    }
+}
@@ -10,6 +10,9 @@
 var params = {ullat: 37.88, ullon: -122.27625, lrlat: 37.83, lrlon: -122.22,
               w: $(window).width(), h: $(window).height()};
 var route_params = {};
+// Lets the server cancel our stale rasters; pending_raster is the one in flight.
+var client_id = Math.random().toString(36).substring(2);
+var pending_raster = null;
 var map; var dest;
 var tx = 0; var ty = 0;
 var rtx; var rty;
@@ -115,6 +118,7 @@ $( document ).ready(function() {
         if (route_params["start_lon"]) { // began routing already but not finished
             route_params["end_lon"] = params["ullon"] + evt.pageX * wdpp;
             route_params["end_lat"] = params["ullat"] - evt.pageY * hdpp;
+            route_params["snap"] = "edge"; // route from the clicked points, not the nearest nodes
             dest.style.visibility = 'visible';
             update();
         } else {
@@ -254,12 +258,15 @@ $( document ).ready(function() {
     }
 
     function updateImg() {
-        // Synchronous ajax call for image update. Could be async for better experience
-        // but then user spam locks up the server.
-        $.get({
-            async: false,
+        // Asynchronous ajax call for image update. A newer update aborts the older one, and
+        // the server cancels its work since it comes from the same client.
+        if (pending_raster) {
+            pending_raster.abort();
+        }
+        pending_raster = $.get({
+            async: true,
             url: raster_server,
-            data: jQuery.extend(params, route_params),
+            data: jQuery.extend(params, route_params, {client: client_id}),
             success: function(data) {
                 if (data.query_success) {
                     console.log("Updating map");
@@ -279,8 +286,12 @@ $( document ).ready(function() {
                     rtx = (route_params["end_lon"] - params["ullon"]) * (1 / wdpp) - dest.width / 2 - tx;
                     rty = - (route_params["end_lat"] - params["ullat"]) * (1 / hdpp) - dest.height - ty;
                     updateMarkers();
+                    updateT();
                 }
             },
+            complete: function() {
+                pending_raster = null;
+            },
             dataType: "json"
         });
     }
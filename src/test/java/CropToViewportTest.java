@@ -0,0 +1,135 @@
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests of cropping a raster to the viewport: the bounds it reports must be the query box,
+ * mapped onto exactly the w by h pixels asked for, with the map where those bounds say.
+ */
+public class CropToViewportTest {
+    private static final long SEED = 48;
+    private static final int TRIALS = 100;
+    private static final double ULLON = -122.2998046875;
+    private static final double ULLAT = 37.87484726881516;
+    private static final double LRLON = -122.2119140625;
+    private static final double LRLAT = 37.82280243352756;
+    private static final int WIDTH = 4 * 256;
+    private static final int HEIGHT = 3 * 256;
+    private static final int BAND = 8;
+
+    private static Map<String, Object> rasterParams() {
+        Map<String, Object> params = new HashMap<>();
+        params.put("raster_ul_lon", ULLON);
+        params.put("raster_ul_lat", ULLAT);
+        params.put("raster_lr_lon", LRLON);
+        params.put("raster_lr_lat", LRLAT);
+        params.put("raster_width", WIDTH);
+        params.put("raster_height", HEIGHT);
+        return params;
+    }
+
+    private static Map<String, Double> query(double ullon, double ullat, double lrlon,
+                                             double lrlat, double w, double h) {
+        Map<String, Double> query = new HashMap<>();
+        query.put("ullon", ullon);
+        query.put("ullat", ullat);
+        query.put("lrlon", lrlon);
+        query.put("lrlat", lrlat);
+        query.put("w", w);
+        query.put("h", h);
+        return query;
+    }
+
+    /**
+     * A black raster with a white band of BAND columns of pixels centered on the left edge of
+     * column x; wide enough not to be lost when it is scaled down.
+     */
+    private static BufferedImage raster(int x) {
+        BufferedImage im = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        for (int col = Math.max(0, x - BAND / 2); col < Math.min(WIDTH, x + BAND / 2); col++) {
+            for (int y = 0; y < HEIGHT; y++) {
+                im.setRGB(col, y, 0xffffff);
+            }
+        }
+        return im;
+    }
+
+    /** The middle of the white pixels of row y of im, in pixels from its left edge. */
+    private static double middle(BufferedImage im, int y) {
+        int first = -1;
+        int last = -1;
+        for (int x = 0; x < im.getWidth(); x++) {
+            if ((im.getRGB(x, y) & 0xff) == 0xff) {
+                first = first < 0 ? x : first;
+                last = x;
+            }
+        }
+        return (first + last + 1) / 2.0;
+    }
+
+    @Test
+    public void queryInsideRasterFillsViewport() {
+        Random random = new Random(SEED);
+        double lonPerPixel = (LRLON - ULLON) / WIDTH;
+        double latPerPixel = (ULLAT - LRLAT) / HEIGHT;
+        for (int i = 0; i < TRIALS; i++) {
+            double w = 200 + random.nextInt(1000);
+            double h = 200 + random.nextInt(800);
+            double ullon = ULLON + random.nextDouble() * 0.4 * (LRLON - ULLON);
+            double lrlon = LRLON - random.nextDouble() * 0.4 * (LRLON - ULLON);
+            double ullat = ULLAT - random.nextDouble() * 0.4 * (ULLAT - LRLAT);
+            double lrlat = LRLAT + random.nextDouble() * 0.4 * (ULLAT - LRLAT);
+            int line = (int) (((ullon + lrlon) / 2 - ULLON) / lonPerPixel);
+            BufferedImage im = raster(line);
+            Map<String, Object> params = rasterParams();
+            BufferedImage cropped = MapServer.cropToViewport(im,
+                    query(ullon, ullat, lrlon, lrlat, w, h), params);
+
+            assertEquals((int) w, cropped.getWidth());
+            assertEquals((int) h, cropped.getHeight());
+            assertEquals((int) w, params.get("raster_width"));
+            assertEquals((int) h, params.get("raster_height"));
+            assertEquals(ullon, (Double) params.get("raster_ul_lon"), lonPerPixel * 1e-9);
+            assertEquals(ullat, (Double) params.get("raster_ul_lat"), latPerPixel * 1e-9);
+            assertEquals(lrlon, (Double) params.get("raster_lr_lon"), lonPerPixel * 1e-9);
+            assertEquals(lrlat, (Double) params.get("raster_lr_lat"), latPerPixel * 1e-9);
+
+            /* The white band shows up where the reported bounds put its longitude. */
+            double lineLon = ULLON + line * lonPerPixel;
+            double scale = w / (lrlon - ullon) * lonPerPixel;
+            assertEquals((lineLon - ullon) / (lrlon - ullon) * w,
+                    middle(cropped, (int) h / 2), scale + 1);
+        }
+    }
+
+    @Test
+    public void queryOffRasterIsCutShort() {
+        double lonPerPixel = (LRLON - ULLON) / WIDTH;
+        double ullon = ULLON - 100 * lonPerPixel;
+        double lrlon = ULLON + 300 * lonPerPixel;
+        Map<String, Object> params = rasterParams();
+        BufferedImage cropped = MapServer.cropToViewport(raster(0),
+                query(ullon, ULLAT, lrlon, LRLAT, 800, HEIGHT), params);
+
+        /* Only the three quarters of the query box over the raster are left. */
+        assertEquals(600, cropped.getWidth());
+        assertEquals(HEIGHT, cropped.getHeight());
+        assertEquals(ULLON, (Double) params.get("raster_ul_lon"), lonPerPixel * 1e-9);
+        assertEquals(lrlon, (Double) params.get("raster_lr_lon"), lonPerPixel * 1e-9);
+    }
+
+    @Test
+    public void queryMissingRasterIsLeftAlone() {
+        BufferedImage im = raster(0);
+        Map<String, Object> params = rasterParams();
+        assertSame(im, MapServer.cropToViewport(im,
+                query(LRLON + 0.01, ULLAT, LRLON + 0.02, LRLAT, 800, 600), params));
+        assertEquals(rasterParams(), params);
+    }
+}
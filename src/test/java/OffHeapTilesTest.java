@@ -0,0 +1,299 @@
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of tiles kept off the heap: under concurrent stores, evictions and copies every copy
+ * must be exactly the tile asked for, and a raster composited from an off-heap cache must be
+ * the one composited from either kind of heap cache. A tile with no image must be looked for
+ * on disk only once, and an overzoomed tile must be the part of its ancestor it covers,
+ * whichever way tiles are kept.
+ */
+public class OffHeapTilesTest {
+    private static final long SEED = 46;
+    private static final int THREADS = 8;
+    /** Tiles small enough for a quick stress test; slots are sized for full tiles anyway. */
+    private static final int SIZE = 64;
+    private static final int RASTER = 100;
+    /** Never a stored pixel, which are kept without alpha. */
+    private static final int UNTOUCHED = 0xff000000;
+
+    /**
+     * Returns a random tile: of a handful of colors, so that it is stored with a palette, or
+     * else of more colors than a palette holds.
+     */
+    private static BufferedImage randomTile(Random random, int size, boolean fewColors) {
+        BufferedImage tile = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        int[] colors = new int[8];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = random.nextInt(0x1000000);
+        }
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                tile.setRGB(x, y, fewColors ? colors[random.nextInt(colors.length)]
+                        : random.nextInt(0x1000000));
+            }
+        }
+        return tile;
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        int[] rgb = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0,
+                image.getWidth());
+        for (int i = 0; i < rgb.length; i++) {
+            rgb[i] &= 0xffffff;
+        }
+        return rgb;
+    }
+
+    @Test
+    public void concurrentCopiesAreWholeTiles() throws Exception {
+        Random random = new Random(SEED);
+        int count = 60;
+        BufferedImage[] tiles = new BufferedImage[count];
+        int[][] expected = new int[count][];
+        for (int k = 0; k < count; k++) {
+            tiles[k] = randomTile(random, SIZE, k % 3 != 0);
+            expected[k] = pixels(tiles[k]);
+        }
+        /* Room for about half of the tiles of each class, so that stores keep evicting. */
+        OffHeapTiles store = new OffHeapTiles(2_000_000);
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            copiesAreWholeTiles(pool, store, tiles, expected);
+        } finally {
+            pool.shutdownNow();
+        }
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(store.size() < count);
+    }
+
+    private static void copiesAreWholeTiles(ExecutorService pool, OffHeapTiles store,
+                                            BufferedImage[] tiles, int[][] expected)
+            throws Exception {
+        int count = tiles.length;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> copies = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            long seed = SEED + t;
+            copies.add(pool.submit(() -> {
+                Random r = new Random(seed);
+                int[] raster = new int[RASTER * RASTER];
+                int copied = 0;
+                start.await();
+                for (int i = 0; i < 3000; i++) {
+                    int k = r.nextInt(count);
+                    if (r.nextInt(3) == 0) {
+                        store.put(k, tiles[k]);
+                        continue;
+                    }
+                    Arrays.fill(raster, UNTOUCHED);
+                    int x = r.nextInt(RASTER - SIZE + 1);
+                    int y = r.nextInt(RASTER - SIZE + 1);
+                    if (!store.blit(k, raster, RASTER, RASTER, x, y)) {
+                        continue;
+                    }
+                    copied++;
+                    for (int row = 0; row < RASTER; row++) {
+                        for (int col = 0; col < RASTER; col++) {
+                            boolean inside = col >= x && col < x + SIZE
+                                    && row >= y && row < y + SIZE;
+                            int want = inside ? expected[k][(row - y) * SIZE + col - x]
+                                    : UNTOUCHED;
+                            if (raster[row * RASTER + col] != want) {
+                                throw new AssertionError("Copy of tile " + k + " differs at ("
+                                        + col + ", " + row + ")");
+                            }
+                        }
+                    }
+                }
+                return copied;
+            }));
+        }
+        start.countDown();
+        int copied = 0;
+        for (Future<Integer> f : copies) {
+            copied += f.get();
+        }
+        assertTrue("Too few copies to test anything: " + copied, copied > 1000);
+    }
+
+    @Test
+    public void concurrentPutsOfOneKeyTakeOneSlot() throws Exception {
+        Random random = new Random(SEED + 1);
+        for (boolean fewColors : new boolean[] {true, false}) {
+            BufferedImage tile = randomTile(random, SIZE, fewColors);
+            OffHeapTiles once = new OffHeapTiles(64L << 20);
+            once.put(7, tile);
+
+            ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+            try {
+                putsOfOneKeyTakeOneSlot(pool, tile, once.bytes());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private static void putsOfOneKeyTakeOneSlot(ExecutorService pool, BufferedImage tile,
+                                                long slotBytes) throws Exception {
+        for (int trial = 0; trial < 50; trial++) {
+            OffHeapTiles store = new OffHeapTiles(64L << 20);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Boolean>> puts = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                puts.add(pool.submit(() -> {
+                    start.await();
+                    return store.put(7, tile);
+                }));
+            }
+            start.countDown();
+            for (Future<Boolean> f : puts) {
+                assertTrue(f.get());
+            }
+            assertEquals(1, store.size());
+            assertEquals(slotBytes, store.bytes());
+
+            /* The slots given back by the other puts are not counted as in use. */
+            store.put(8, tile);
+            assertEquals(2 * slotBytes, store.bytes());
+            int[] raster = new int[SIZE * SIZE];
+            assertTrue(store.blit(7, raster, SIZE, SIZE, 0, 0));
+            assertArrayEquals(pixels(tile), raster);
+        }
+    }
+
+    /** Writes a tile image for every id at depth 2 but one, into a new image directory. */
+    private static Region region(Random random) throws IOException {
+        File dir = Files.createTempDirectory("tiles").toFile();
+        dir.deleteOnExit();
+        Region region = new Region(0, "test", "", dir.getPath() + File.separator,
+                MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT,
+                MapServer.ROOT_LRLON, MapServer.ROOT_LRLAT);
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                if (x == 2 && y == 1) {
+                    continue;
+                }
+                QTreeNode n = region.tile(2, x, y);
+                int type = (x + y) % 3 == 0 ? BufferedImage.TYPE_INT_ARGB
+                        : BufferedImage.TYPE_INT_RGB;
+                BufferedImage tile = new BufferedImage(256, 256, type);
+                BufferedImage pixels = randomTile(random, 256, (x + y) % 2 == 0);
+                for (int row = 0; row < 256; row++) {
+                    for (int col = 0; col < 256; col++) {
+                        int alpha = type == BufferedImage.TYPE_INT_RGB ? 0xff : row;
+                        tile.setRGB(col, row, alpha << 24 | pixels.getRGB(col, row) & 0xffffff);
+                    }
+                }
+                File file = new File(region.imgRoot() + n.id() + ".png");
+                ImageIO.write(tile, "png", file);
+                file.deleteOnExit();
+            }
+        }
+        return region;
+    }
+
+    @Test
+    public void offHeapCompositesLikeHeap() throws IOException {
+        Region region = region(new Random(SEED + 2));
+        List<QTreeNode> tiles = new ArrayList<>();
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                tiles.add(region.tile(2, x, y));
+            }
+        }
+        /* The last row and column of tiles hang off the raster. */
+        int width = 4 * 256 - 100;
+        int height = 4 * 256 - 37;
+        for (long budget : new long[] {TileCache.DEFAULT_BUDGET, 600_000}) {
+            int[] full = pixels(MapServer.composite(
+                    new TileCache(budget, TileFormat.FULL, false), tiles, width, height));
+            int[] indexed = pixels(MapServer.composite(
+                    new TileCache(budget, TileFormat.INDEXED, false), tiles, width, height));
+            int[] offHeap = pixels(MapServer.composite(
+                    new TileCache(budget, TileFormat.FULL, true), tiles, width, height));
+            assertArrayEquals(full, indexed);
+            assertArrayEquals(full, offHeap);
+        }
+    }
+
+    @Test
+    public void missingTileIsReadOnce() throws IOException {
+        for (boolean offHeap : new boolean[] {false, true}) {
+            Region region = region(new Random(SEED + 3));
+            QTreeNode missing = region.tile(2, 2, 1);
+            TileCache cache = new TileCache(TileCache.DEFAULT_BUDGET, TileFormat.FULL, offHeap);
+            cache.load(missing);
+            cache.load(missing);
+            assertTrue(cache.contains(missing.key()));
+            assertEquals(0, cache.size());
+            assertFalse(cache.accessCounts().containsKey(missing.key()));
+
+            /* An image written since is not read: the tile is known to be missing. */
+            File file = new File(region.imgRoot() + missing.id() + ".png");
+            ImageIO.write(randomTile(new Random(SEED), 256, false), "png", file);
+            file.deleteOnExit();
+            int[] raster = new int[256 * 256];
+            assertEquals(null, cache.blit(missing, raster, 256, 256, 0, 0));
+            assertArrayEquals(new int[256 * 256], raster);
+            assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    public void overzoomedTilesScaleUpTheirAncestor() throws IOException {
+        /* A deepest tile on disk, red on its left half and blue on its right. */
+        File dir = Files.createTempDirectory("tiles").toFile();
+        dir.deleteOnExit();
+        Region region = new Region(0, "test", "", dir.getPath() + File.separator,
+                MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT,
+                MapServer.ROOT_LRLON, MapServer.ROOT_LRLAT);
+        BufferedImage tile = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                tile.setRGB(x, y, x < 128 ? 0xff0000 : 0x0000ff);
+            }
+        }
+        File file = new File(region.imgRoot() + region.tile(QTreeNode.MAX_DEPTH, 0, 0).id()
+                + ".png");
+        ImageIO.write(tile, "png", file);
+        file.deleteOnExit();
+
+        for (boolean offHeap : new boolean[] {false, true}) {
+            TileCache cache = new TileCache(TileCache.DEFAULT_BUDGET, TileFormat.FULL, offHeap);
+            int depth = QTreeNode.MAX_DEPTH + 1;
+            assertEquals(0xff0000, center(cache, region.tile(depth, 0, 0)));
+            assertEquals(0x0000ff, center(cache, region.tile(depth, 1, 0)));
+            assertEquals(0x0000ff, center(cache, region.tile(depth + 1, 3, 0)));
+            /* The tiles of an ancestor with no image are blank. */
+            assertEquals(0, center(cache, region.tile(depth, 2, 0)));
+        }
+    }
+
+    /** The color of the middle pixel of tile n, as composited from cache. */
+    private static int center(TileCache cache, QTreeNode n) {
+        List<QTreeNode> tiles = new ArrayList<>();
+        tiles.add(n);
+        return MapServer.composite(cache, tiles, 256, 256).getRGB(128, 128) & 0xffffff;
+    }
+}
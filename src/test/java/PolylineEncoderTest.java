@@ -0,0 +1,22 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/** Tests of the encoded polyline format against the examples of its description. */
+public class PolylineEncoderTest {
+    @Test
+    public void referencePolyline() {
+        double[] lons = {-120.2, -120.95, -126.453};
+        double[] lats = {38.5, 40.7, 43.252};
+        assertEquals("_p~iF~ps|U_ulLnnqC_mqNvxq`@", PolylineEncoder.encode(lons, lats));
+    }
+
+    /** The format description's example of one value, -179.9832104, then a 0. */
+    @Test
+    public void singlePoint() {
+        assertEquals("`~oia@?",
+                PolylineEncoder.encode(new double[] {0}, new double[] {-179.9832104}));
+        assertEquals("??", PolylineEncoder.encode(new double[] {0}, new double[] {0}));
+        assertEquals("", PolylineEncoder.encode(new double[0], new double[0]));
+    }
+}
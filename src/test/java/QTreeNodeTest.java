@@ -0,0 +1,164 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Property tests of tile selection: on many random query boxes, QTreeNode.checkLDP must pick
+ * exactly the tiles a brute force scan of the quadtree picks, and must not split any tile it
+ * did not have to.
+ */
+public class QTreeNodeTest {
+    private static final long SEED = 61;
+    private static final int TRIALS = 400;
+    private static final Region REGION = new Region(0, "test", "", "",
+            MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT, MapServer.ROOT_LRLON, MapServer.ROOT_LRLAT);
+    private static final double ROOT_WIDTH = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
+    private static final double ROOT_HEIGHT = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
+
+    /**
+     * Returns a random query box: anywhere from much smaller than a deepest tile to larger than
+     * the root, and sometimes partly or wholly off the root.
+     */
+    private static QTreeNode randomQuery(Random random) {
+        double width = ROOT_WIDTH * Math.pow(2, -random.nextDouble() * 11 + 1);
+        double height = ROOT_HEIGHT * Math.pow(2, -random.nextDouble() * 11 + 1);
+        double ullon = MapServer.ROOT_ULLON + (random.nextDouble() * 1.4 - 0.2) * ROOT_WIDTH
+                - width / 2;
+        double ullat = MapServer.ROOT_ULLAT - (random.nextDouble() * 1.4 - 0.2) * ROOT_HEIGHT
+                + height / 2;
+        return new QTreeNode(-1, -1, ullon, ullat, ullon + width, ullat - height);
+    }
+
+    /** Whether the closed boxes of a and b share a point, by the overlap of their spans. */
+    private static boolean overlaps(QTreeNode a, QTreeNode b) {
+        return Math.max(a.lonUL(), b.lonUL()) <= Math.min(a.lonLR(), b.lonLR())
+                && Math.max(a.latLR(), b.latLR()) <= Math.min(a.latUL(), b.latUL());
+    }
+
+    /** The tiles checkLDP should pick, found by scanning every tile of the right depth. */
+    private static Set<Integer> bruteForce(QTreeNode query, double ldpGoal, int maxDepth) {
+        int depth = 0;
+        while (depth < maxDepth && ROOT_WIDTH / (1 << depth) / 256 > ldpGoal) {
+            depth++;
+        }
+        Set<Integer> ids = new HashSet<>();
+        for (int x = 0; x < 1 << depth; x++) {
+            for (int y = 0; y < 1 << depth; y++) {
+                QTreeNode tile = REGION.tile(depth, x, y);
+                if (overlaps(tile, query)) {
+                    ids.add(tile.id());
+                }
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void intersectsMatchesOverlap() {
+        Random random = new Random(SEED);
+        for (int i = 0; i < 100 * TRIALS; i++) {
+            QTreeNode a = randomQuery(random);
+            QTreeNode b = randomQuery(random);
+            assertEquals(overlaps(a, b), a.intersects(b));
+            assertEquals(a.intersects(b), b.intersects(a));
+        }
+    }
+
+    @Test
+    public void queryInsideOneTile() {
+        QTreeNode tile = REGION.tile(3, 5, 2);
+        double lon = tile.lonLR() - tile.lonUL();
+        double lat = tile.latUL() - tile.latLR();
+        QTreeNode query = new QTreeNode(-1, -1, tile.lonUL() + lon / 3, tile.latUL() - lat / 3,
+                tile.lonUL() + lon / 2, tile.latUL() - lat / 2);
+        assertTrue(tile.intersects(query));
+
+        ArrayList<QTreeNode> selected = new ArrayList<>();
+        REGION.root().checkLDP(selected, query, Double.MAX_VALUE, 3);
+        assertEquals(1, selected.size());
+        selected.clear();
+        REGION.root().checkLDP(selected, query, 0.0, 3);
+        assertEquals(1, selected.size());
+        assertEquals(tile.id(), selected.get(0).id());
+    }
+
+    @Test
+    public void queryOffRootSelectsNothing() {
+        QTreeNode query = new QTreeNode(-1, -1, MapServer.ROOT_LRLON + ROOT_WIDTH / 10,
+                MapServer.ROOT_ULLAT, MapServer.ROOT_LRLON + ROOT_WIDTH / 5,
+                MapServer.ROOT_LRLAT);
+        ArrayList<QTreeNode> selected = new ArrayList<>();
+        REGION.root().checkLDP(selected, query, 0.0, QTreeNode.MAX_DEPTH);
+        assertTrue(selected.isEmpty());
+    }
+
+    @Test
+    public void queryAroundRootSelectsEveryTile() {
+        /* Twice the root in each direction, at a resolution only depth 2 tiles meet. */
+        QTreeNode query = new QTreeNode(-1, -1, MapServer.ROOT_ULLON - ROOT_WIDTH / 2,
+                MapServer.ROOT_ULLAT + ROOT_HEIGHT / 2, MapServer.ROOT_LRLON + ROOT_WIDTH / 2,
+                MapServer.ROOT_LRLAT - ROOT_HEIGHT / 2);
+        ArrayList<QTreeNode> selected = new ArrayList<>();
+        REGION.root().checkLDP(selected, query, ROOT_WIDTH / 4 / 256, QTreeNode.MAX_DEPTH);
+        assertEquals(16, selected.size());
+        for (QTreeNode n : selected) {
+            assertEquals(2, n.depth());
+        }
+    }
+
+    @Test
+    public void checkLDPMatchesBruteForce() {
+        Random random = new Random(SEED);
+        for (int i = 0; i < TRIALS; i++) {
+            QTreeNode query = randomQuery(random);
+            double ldpGoal = (query.lonLR() - query.lonUL()) / (200 + random.nextInt(1800));
+            /* Overzoomed depths have many times more tiles to scan, so test them less. */
+            int maxDepth = i % 20 == 0 ? QTreeNode.MAX_OVERZOOM_DEPTH
+                    : random.nextInt(QTreeNode.MAX_DEPTH + 1);
+
+            ArrayList<QTreeNode> selected = new ArrayList<>();
+            REGION.root().checkLDP(selected, query, ldpGoal, maxDepth);
+            Set<Integer> ids = new HashSet<>();
+            for (QTreeNode n : selected) {
+                assertTrue("Tile " + n.id() + " selected twice", ids.add(n.id()));
+                assertEquals(selected.get(0).depth(), n.depth());
+            }
+            assertEquals("Query " + i, bruteForce(query, ldpGoal, maxDepth), ids);
+        }
+    }
+
+    @Test
+    public void checkLDPSplitsOnlyWhatItMust() {
+        Random random = new Random(SEED + 1);
+        for (int i = 0; i < TRIALS; i++) {
+            QTreeNode query = randomQuery(random);
+            double ldpGoal = (query.lonLR() - query.lonUL()) / (200 + random.nextInt(1800));
+            QTreeNode root = REGION.root();
+            root.checkLDP(new ArrayList<>(), query, ldpGoal, QTreeNode.MAX_DEPTH);
+
+            /* A tile whose children were generated must intersect the query, and must be too
+             * coarse for it. */
+            List<QTreeNode> fringe = new ArrayList<>();
+            fringe.add(root);
+            while (!fringe.isEmpty()) {
+                QTreeNode n = fringe.remove(fringe.size() - 1);
+                if (n.children()[0] == null) {
+                    continue;
+                }
+                assertTrue(n.intersects(query));
+                assertFalse((n.lonLR() - n.lonUL()) / 256 <= ldpGoal);
+                for (QTreeNode child : n.children()) {
+                    fringe.add(child);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of raster coalescing: identical requests in flight at once must share one computation,
+ * and a degraded request must never share the computation of a full one, even when both come
+ * to the same tiles.
+ */
+public class RasterPipelineTest {
+    private static final long TIMEOUT_MS = 10_000;
+
+    /** A cache whose tile reads wait until released, so that computations stay in flight. */
+    private static class HeldCache extends TileCache {
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        HeldCache() {
+            super(TileCache.DEFAULT_BUDGET, TileFormat.FULL, false);
+        }
+
+        @Override
+        public void read(QTreeNode n) {
+            try {
+                released.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.read(n);
+        }
+
+        void release() {
+            released.countDown();
+        }
+    }
+
+    /**
+     * A query deep enough that a raster one level coarser is made of the same deepest tiles.
+     * No image directory exists, so the tiles are blank.
+     */
+    private static Map<String, Double> deepQuery() {
+        double width = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / 1000;
+        double height = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / 1000;
+        Map<String, Double> query = new HashMap<>();
+        query.put("ullon", MapServer.ROOT_ULLON + 300 * width);
+        query.put("ullat", MapServer.ROOT_ULLAT - 400 * height);
+        query.put("lrlon", MapServer.ROOT_ULLON + 301 * width);
+        query.put("lrlat", MapServer.ROOT_ULLAT - 401 * height);
+        query.put("w", 800.0);
+        query.put("h", 600.0);
+        return query;
+    }
+
+    /** Waits until a and b share a computation, or fails. */
+    private static void awaitShared(RasterPipeline.Job a, RasterPipeline.Job b)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!a.sharesComputation(b)) {
+            assertTrue("Jobs never shared a computation", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void coalescesOnlyIdenticalRasters() throws Exception {
+        Region region = new Region(0, "test", "", "no-such-directory/",
+                MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT,
+                MapServer.ROOT_LRLON, MapServer.ROOT_LRLAT);
+        HeldCache cache = new HeldCache();
+        RasterPipeline pipeline = new RasterPipeline(null, cache,
+                Collections.singletonList(region));
+        Map<String, Double> query = deepQuery();
+
+        RasterPipeline.Job full = pipeline.submit(null, query, null, RouteProfile.DEFAULT,
+                false, false, false);
+        RasterPipeline.Job fullAgain = pipeline.submit(null, query, null, RouteProfile.DEFAULT,
+                false, false, false);
+        RasterPipeline.Job degraded = pipeline.submit(null, query, null, RouteProfile.DEFAULT,
+                false, false, true);
+        RasterPipeline.Job degradedAgain = pipeline.submit(null, query, null,
+                RouteProfile.DEFAULT, false, false, true);
+        RasterPipeline.Job cancelled = pipeline.submit(null, query, null, RouteProfile.DEFAULT,
+                false, false, false);
+        try {
+            awaitShared(full, fullAgain);
+            awaitShared(degraded, degradedAgain);
+            awaitShared(full, cancelled);
+            assertFalse(full.sharesComputation(degraded));
+            /* A job that gives up leaves the computation to the others. */
+            cancelled.cancel();
+        } finally {
+            cache.release();
+        }
+
+        Map<String, Object> a = full.result().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        Map<String, Object> b = fullAgain.result().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        Map<String, Object> c = degraded.result().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        Map<String, Object> d = degradedAgain.result().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(a, b);
+        assertEquals(c, d);
+        assertEquals(QTreeNode.MAX_DEPTH, a.get("depth"));
+        assertEquals(a.get("depth"), c.get("depth"));
+        assertFalse(a.containsKey("degraded"));
+        assertEquals(true, c.get("degraded"));
+        assertTrue(cancelled.isCancelled());
+    }
+}
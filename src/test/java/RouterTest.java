@@ -0,0 +1,250 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of routing between points snapped onto road segments: on a small hand-built grid of
+ * roads, the cost of every snapped route must be the cheapest way to leave the origin's
+ * segment by either end and reach the destination's segment by either end, as found by an
+ * all-pairs brute force over the graph.
+ */
+public class RouterTest {
+    private static final long SEED = 36;
+    private static final int TRIALS = 300;
+    private static final int SIDE = 6;
+    private static final double STEP = 0.002;
+
+    /** A SIDE x SIDE grid of nodes near Berkeley with about a quarter of its roads missing. */
+    private static RoadGraph grid(Random random) {
+        NodeTable table = new NodeTable();
+        for (int i = 0; i < SIDE * SIDE; i++) {
+            int index = table.add(1000 + i);
+            table.setLocation(index,
+                    -122.27 + (i % SIDE) * STEP + random.nextDouble() * STEP / 3,
+                    37.87 - (i / SIDE) * STEP + random.nextDouble() * STEP / 3);
+        }
+        List<Connection> connections = new ArrayList<>();
+        for (int i = 0; i < SIDE * SIDE; i++) {
+            if (i % SIDE < SIDE - 1 && random.nextInt(4) > 0) {
+                connections.add(road(table, random, i, i + 1));
+            }
+            if (i / SIDE < SIDE - 1 && random.nextInt(4) > 0) {
+                connections.add(road(table, random, i, i + SIDE));
+            }
+        }
+        return RoadGraph.build(table, connections);
+    }
+
+    private static Connection road(NodeTable table, Random random, int a, int b) {
+        String highway = RouteProfile.HIGHWAY_CLASSES.get(
+                random.nextInt(RouteProfile.HIGHWAY_CLASSES.size()));
+        WayRecord way = new WayRecord(a * SIDE * SIDE + b,
+                new long[] {table.id(a), table.id(b)}, "", highway);
+        return new Connection(way, new int[] {a, b});
+    }
+
+    /** Cheapest cost between every pair of nodes, by Floyd-Warshall. */
+    private static double[][] allPairs(RoadGraph graph, RouteProfile profile) {
+        int n = SIDE * SIDE;
+        double[] weights = graph.weights(profile);
+        double[][] d = new double[n][n];
+        for (int a = 0; a < n; a++) {
+            Arrays.fill(d[a], Double.POSITIVE_INFINITY);
+            d[a][a] = 0;
+            for (int e = graph.firstEdge(a); e < graph.lastEdge(a); e++) {
+                d[a][graph.target(e)] = weights[e];
+            }
+        }
+        for (int k = 0; k < n; k++) {
+            for (int a = 0; a < n; a++) {
+                for (int b = 0; b < n; b++) {
+                    d[a][b] = Math.min(d[a][b], d[a][k] + d[k][b]);
+                }
+            }
+        }
+        return d;
+    }
+
+    /** Cost of the part of snap's segment between the snapped point and node. */
+    private static double offset(RoadGraph graph, RouteProfile profile, EdgeSnap snap, int node) {
+        double cost = graph.weights(profile)[graph.edge(snap.u, snap.v)];
+        return (node == snap.u ? snap.t : 1 - snap.t) * cost;
+    }
+
+    /** The cheapest snapped route cost, over both ends of both segments. */
+    private static double bruteForce(RoadGraph graph, RouteProfile profile, double[][] d,
+                                     EdgeSnap origin, EdgeSnap destination) {
+        double best = Double.POSITIVE_INFINITY;
+        if (origin.segment == destination.segment) {
+            best = Math.abs(destination.t - origin.t)
+                    * graph.weights(profile)[graph.edge(origin.u, origin.v)];
+        }
+        for (int a : new int[] {origin.u, origin.v}) {
+            for (int b : new int[] {destination.u, destination.v}) {
+                best = Math.min(best, offset(graph, profile, origin, a) + d[a][b]
+                        + offset(graph, profile, destination, b));
+            }
+        }
+        return best;
+    }
+
+    /** Cost of a path returned by Router, including the partial segments at either end. */
+    private static double cost(RoadGraph graph, RouteProfile profile, int[] path,
+                               EdgeSnap origin, EdgeSnap destination) {
+        if (path.length == 0) {
+            assertEquals(origin.segment, destination.segment);
+            return Math.abs(destination.t - origin.t)
+                    * graph.weights(profile)[graph.edge(origin.u, origin.v)];
+        }
+        double[] weights = graph.weights(profile);
+        double cost = offset(graph, profile, origin, path[0]);
+        for (int i = 0; i < path.length - 1; i++) {
+            int e = graph.edge(path[i], path[i + 1]);
+            assertTrue("No edge " + path[i] + "-" + path[i + 1], e >= 0);
+            cost += weights[e];
+        }
+        return cost + offset(graph, profile, destination, path[path.length - 1]);
+    }
+
+    /** A point at fraction t along the segment snap lies on. */
+    private static double[] along(RoadGraph graph, EdgeSnap snap, double t) {
+        return new double[] {
+            graph.lon(snap.u) + t * (graph.lon(snap.v) - graph.lon(snap.u)),
+            graph.lat(snap.u) + t * (graph.lat(snap.v) - graph.lat(snap.u))
+        };
+    }
+
+    @Test
+    public void snappedRouteMatchesBruteForce() {
+        Random random = new Random(SEED);
+        RoadGraph graph = grid(random);
+        EdgeIndex index = new EdgeIndex(graph);
+        Router router = new Router(graph);
+        double width = SIDE * STEP;
+        for (RouteProfile profile : RouteProfile.values()) {
+            double[][] d = allPairs(graph, profile);
+            for (int i = 0; i < TRIALS; i++) {
+                EdgeSnap origin = index.nearest(-122.27 + random.nextDouble() * width,
+                        37.87 - random.nextDouble() * width + STEP);
+                EdgeSnap destination = index.nearest(-122.27 + random.nextDouble() * width,
+                        37.87 - random.nextDouble() * width + STEP);
+                double expected = bruteForce(graph, profile, d, origin, destination);
+                int[] path = router.route(origin, destination, profile);
+                if (expected == Double.POSITIVE_INFINITY) {
+                    assertEquals(null, path);
+                    continue;
+                }
+                assertNotNull(profile + " route " + i, path);
+                assertEquals(profile + " route " + i, expected,
+                        cost(graph, profile, path, origin, destination), expected * 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void sameSegmentRoute() {
+        Random random = new Random(SEED + 1);
+        RoadGraph graph = grid(random);
+        EdgeIndex index = new EdgeIndex(graph);
+        Router router = new Router(graph);
+        for (RouteProfile profile : RouteProfile.values()) {
+            double[][] d = allPairs(graph, profile);
+            for (int i = 0; i < TRIALS; i++) {
+                EdgeSnap any = index.nearest(-122.27 + random.nextDouble() * SIDE * STEP,
+                        37.87 - random.nextDouble() * SIDE * STEP + STEP);
+                double[] a = along(graph, any, 0.1 + random.nextDouble() * 0.8);
+                double[] b = along(graph, any, 0.1 + random.nextDouble() * 0.8);
+                EdgeSnap origin = index.nearest(a[0], a[1]);
+                EdgeSnap destination = index.nearest(b[0], b[1]);
+                assertEquals(any.segment, origin.segment);
+                assertEquals(any.segment, destination.segment);
+
+                /* Leaving the segment and coming back can never beat staying on it. */
+                int[] path = router.route(origin, destination, profile);
+                assertNotNull(path);
+                assertEquals(0, path.length);
+                double expected = bruteForce(graph, profile, d, origin, destination);
+                assertEquals(expected, Math.abs(destination.t - origin.t)
+                        * graph.weights(profile)[graph.edge(origin.u, origin.v)], 1e-12);
+            }
+        }
+    }
+
+    /** One straight residential road due east, through nodes 0, 1 and 2, 0.01 degrees apart. */
+    private static RoadGraph straightRoad() {
+        NodeTable table = new NodeTable();
+        for (int i = 0; i < 3; i++) {
+            table.setLocation(table.add(3000 + i), -122.27 + i * 0.01, 37.87);
+        }
+        WayRecord way = new WayRecord(1, new long[] {3000, 3001, 3002}, "Main St",
+                "residential");
+        return RoadGraph.build(table, Arrays.asList(new Connection(way, new int[] {0, 1, 2})));
+    }
+
+    @Test
+    public void sameSegmentSnapStaysOnSegment() {
+        RoadGraph graph = straightRoad();
+        EdgeIndex index = new EdgeIndex(graph);
+        EdgeSnap origin = index.nearest(-122.2675, 37.8701);
+        EdgeSnap destination = index.nearest(-122.2625, 37.8699);
+        assertEquals(origin.segment, destination.segment);
+        assertEquals(0.25, origin.u == 0 ? origin.t : 1 - origin.t, 1e-6);
+        assertEquals(0.75, destination.u == 0 ? destination.t : 1 - destination.t, 1e-6);
+
+        /* The route runs along the segment, through no node, for half its length. */
+        assertEquals(0, new Router(graph).route(origin, destination, RouteProfile.DISTANCE)
+                .length);
+        assertEquals(origin.length / 2, Math.abs(destination.t - origin.t) * origin.length,
+                1e-6);
+    }
+
+    @Test
+    public void adjacentSegmentsMeetAtSharedNode() {
+        RoadGraph graph = straightRoad();
+        EdgeIndex index = new EdgeIndex(graph);
+        EdgeSnap origin = index.nearest(-122.265, 37.8701);
+        EdgeSnap destination = index.nearest(-122.255, 37.8699);
+        assertArrayEquals(new int[] {1},
+                new Router(graph).route(origin, destination, RouteProfile.DISTANCE));
+    }
+
+    @Test
+    public void nonFinitePointsDoNotSnap() {
+        EdgeIndex index = new EdgeIndex(grid(new Random(SEED)));
+        assertNull(index.nearest(Double.NaN, 37.87));
+        assertNull(index.nearest(-122.27, Double.NaN));
+        assertNull(index.nearest(Double.POSITIVE_INFINITY, 37.87));
+    }
+
+    @Test
+    public void farApartRoadsSnap() {
+        /* Two roads about 2000 km apart: a 100 m grid over their bounding box would need
+         * hundreds of millions of cells. */
+        NodeTable table = new NodeTable();
+        double[][] points = {{-122.27, 37.87}, {-122.26, 37.87}, {-102.27, 27.87},
+            {-102.27, 27.88}};
+        for (int i = 0; i < points.length; i++) {
+            table.setLocation(table.add(2000 + i), points[i][0], points[i][1]);
+        }
+        Random random = new Random(SEED);
+        RoadGraph graph = RoadGraph.build(table, Arrays.asList(road(table, random, 0, 1),
+                road(table, random, 2, 3)));
+        EdgeIndex index = new EdgeIndex(graph);
+        EdgeSnap west = index.nearest(-122.265, 37.8701);
+        assertEquals(0, Math.min(west.u, west.v));
+        assertEquals(0.5, west.u == 0 ? west.t : 1 - west.t, 1e-6);
+        EdgeSnap east = index.nearest(-102.2701, 27.875);
+        assertEquals(2, Math.min(east.u, east.v));
+        /* A point between them snaps to whichever road is closer. */
+        assertEquals(2, Math.min(index.nearest(-105, 30).u, index.nearest(-105, 30).v));
+    }
+}